@@ -0,0 +1,149 @@
+package org.jdesktop.swingx;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.jdesktop.swingx.mapviewer.Tile;
+import org.jdesktop.swingx.mapviewer.TileFactory;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the frame time of a <code>JXMapViewer</code> painting loaded tiles
+ * into an off-screen image in a headless virtual machine, at full HD and 4K
+ * viewport sizes. A frame either repaints the same view or pans the map by a
+ * few pixels. Run with the GC profiler to get the allocation rate per frame:
+ * <code>./gradlew jmh -PjmhArgs="JXMapViewerBenchmark -prof gc"</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class JXMapViewerBenchmark {
+	// a map of 64 x 64 tiles
+	private static final int ZOOM = 11;
+
+	@Param({ "1920x1080", "3840x2160" })
+	public String viewport;
+
+	@Param({ "false", "true" })
+	public boolean incrementalRepaint;
+
+	private JXMapViewer viewer;
+	private BufferedImage frame;
+	private Graphics2D g;
+	private double centerX;
+	private double centerY;
+	private int frames;
+
+	@Setup
+	public void setUp() {
+		int width = Integer.parseInt(viewport.substring(0, viewport.indexOf('x')));
+		int height = Integer.parseInt(viewport.substring(viewport.indexOf('x') + 1));
+
+		LoadedTileFactory factory = new LoadedTileFactory();
+		viewer = new JXMapViewer();
+		viewer.setDoubleBuffered(false);
+		viewer.setTileFactory(factory);
+		viewer.setZoom(ZOOM);
+		viewer.setIncrementalRepaint(incrementalRepaint);
+		viewer.setSize(width, height);
+		centerX = factory.getMapSize(ZOOM).width * 256 / 2;
+		centerY = factory.getMapSize(ZOOM).height * 256 / 2;
+		viewer.setCenter(new Point2D.Double(centerX, centerY));
+
+		frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		g = frame.createGraphics();
+	}
+
+	@TearDown
+	public void tearDown() {
+		g.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage repaint() {
+		viewer.paint(g);
+		return frame;
+	}
+
+	@Benchmark
+	public BufferedImage pan() {
+		// move back and forth so that the view stays on the map
+		centerX += (frames++ & 64) == 0 ? 3 : -3;
+		viewer.setCenter(new Point2D.Double(centerX, centerY));
+		viewer.paint(g);
+		return frame;
+	}
+
+	/**
+	 * A factory whose tiles are all loaded and share one image.
+	 */
+	private static final class LoadedTileFactory extends TileFactory {
+		private final Tile[][] tiles;
+		private final Tile offMap;
+
+		LoadedTileFactory() {
+			super(new TileFactoryInfo(1, 15, 17, 256, true, true, "http://localhost/tiles", "x", "y", "z"));
+			BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.drawLine(0, 0, 255, 255);
+			g.dispose();
+
+			int size = getInfo().getMapWidthInTilesAtZoom(ZOOM);
+			tiles = new Tile[size][size];
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					tiles[y][x] = new LoadedTile(x, y, image);
+				}
+			}
+			offMap = new LoadedTile(0, -1, image);
+		}
+
+		@Override
+		public Tile getTile(int x, int y, int zoom) {
+			if (zoom != ZOOM || y < 0 || y >= tiles.length) {
+				return offMap;
+			}
+			return tiles[y][Math.floorMod(x, tiles.length)];
+		}
+
+		@Override
+		protected void startLoading(Tile tile) {
+		}
+	}
+
+	private static final class LoadedTile extends Tile {
+		private final BufferedImage image;
+
+		LoadedTile(int x, int y, BufferedImage image) {
+			super(x, y, ZOOM);
+			this.image = image;
+		}
+
+		@Override
+		public boolean isLoaded() {
+			return true;
+		}
+
+		@Override
+		public BufferedImage getImage() {
+			return image;
+		}
+	}
+}
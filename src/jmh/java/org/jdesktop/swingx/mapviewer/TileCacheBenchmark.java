@@ -0,0 +1,86 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of tile cache lookups while loader threads and the
+ * event dispatch thread contend for the cache. Nine out of ten lookups hit a
+ * decoded image, the others miss both tiers. The same lookups run on 1, 4 and 8
+ * threads, so the results show how each cache scales with the size of the tile
+ * pool.
+ * <p>
+ * Run with <code>./gradlew jmh -PjmhArgs=TileCacheBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileCacheBenchmark {
+	private static final int TILES = 4096;
+
+	@Param({ "TileCache", "ConcurrentTileCache" })
+	public String cache;
+
+	private TileCache tileCache;
+	private URI[] uris;
+
+	@Setup
+	public void setUp() throws Exception {
+		tileCache = "TileCache".equals(cache) ? new TileCache() : new ConcurrentTileCache();
+
+		// a tenth of the URIs is never put, so looking them up misses both tiers
+		uris = new URI[TILES + TILES / 9];
+		byte[] bytes = new byte[1024];
+		for (int i = 0; i < uris.length; i++) {
+			uris[i] = new URI("http://tile.example.com/17/" + i + "/" + i + ".png");
+			if (i < TILES) {
+				tileCache.put(uris[i], bytes, new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB));
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public BufferedImage get1Thread() throws Exception {
+		return get();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public BufferedImage get4Threads() throws Exception {
+		return get();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public BufferedImage get8Threads() throws Exception {
+		return get();
+	}
+
+	private BufferedImage get() throws Exception {
+		BufferedImage img = tileCache.get(uris[ThreadLocalRandom.current().nextInt(uris.length)]);
+		if (img != null) {
+			// as a loader does once the image has been published
+			TileRasterPool.getInstance().unpin(img);
+		}
+		return img;
+	}
+}
@@ -0,0 +1,162 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the time to fill a 4K viewport, 160 tiles of 256 pixels, from a
+ * tile server on the loopback interface. Four loader threads download the
+ * tiles, like the default tile pool. Some tiles can be missing, as they are
+ * over the sea on many servers: the previous fetch path did not drain error
+ * responses, so every missing tile cost the keep-alive connection.
+ * <p>
+ * Run with <code>./gradlew jmh -PjmhArgs=TileFetchBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileFetchBenchmark {
+	private static final int VIEWPORT_TILES = 16 * 10;
+	private static final int LOADERS = 4;
+	private static final int TILE_LENGTH = 20 * 1024;
+
+	@Param({ "0", "10" })
+	public int missingPercent;
+
+	private HttpServer server;
+	private ExecutorService loaders;
+	private URL[] urls;
+
+	@Setup
+	public void setUp() throws IOException {
+		final byte[] tile = new byte[TILE_LENGTH];
+		new Random(0).nextBytes(tile);
+		final byte[] notFound = "<html><body>Tile not found</body></html>".getBytes("US-ASCII");
+
+		// otherwise Nagle's algorithm delays every response on the loopback interface
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(2 * LOADERS));
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				int index = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1, path.length() - 4));
+				byte[] body = index % 100 < missingPercent ? notFound : tile;
+				exchange.getResponseHeaders().set("Content-Type", body == tile ? "image/png" : "text/html");
+				exchange.sendResponseHeaders(body == tile ? 200 : 404, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		loaders = Executors.newFixedThreadPool(LOADERS);
+		urls = new URL[VIEWPORT_TILES];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/17/" + i + ".png");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		loaders.shutdownNow();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	@Benchmark
+	public int fillViewport() throws Exception {
+		return fill(new Fetcher() {
+			public byte[] fetch(URL url) throws IOException {
+				return TileFetcher.fetch(url, null, new Tile(0, 0, 0), null).bytes;
+			}
+		});
+	}
+
+	@Benchmark
+	public int fillViewportPlainConnection() throws Exception {
+		return fill(new Fetcher() {
+			public byte[] fetch(URL url) throws IOException {
+				return fetchPlain(url);
+			}
+		});
+	}
+
+	private int fill(final Fetcher fetcher) throws Exception {
+		List<Future<Integer>> loads = new ArrayList<Future<Integer>>(urls.length);
+		for (final URL url : urls) {
+			loads.add(loaders.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					try {
+						return fetcher.fetch(url).length;
+					} catch (FileNotFoundException e) {
+						return 0;
+					}
+				}
+			}));
+		}
+
+		int length = 0;
+		for (Future<Integer> load : loads) {
+			length += load.get();
+		}
+		return length;
+	}
+
+	/**
+	 * The fetch path before TileFetcher: a 256 byte copy buffer, and error
+	 * responses are left unread, so their connection cannot be reused.
+	 */
+	private static byte[] fetchPlain(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		InputStream ins = connection.getInputStream();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] buf = new byte[256];
+		while (true) {
+			int n = ins.read(buf);
+			if (n == -1) break;
+			bout.write(buf, 0, n);
+		}
+		return bout.toByteArray();
+	}
+
+	private interface Fetcher {
+		byte[] fetch(URL url) throws IOException;
+	}
+}
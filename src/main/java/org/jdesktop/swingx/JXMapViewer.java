@@ -9,6 +9,7 @@
 
 package org.jdesktop.swingx;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
@@ -18,11 +19,13 @@ import java.awt.Image;
 import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -30,6 +33,9 @@ import java.beans.DesignMode;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import javax.imageio.ImageIO;
@@ -43,6 +49,7 @@ import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
 import org.jdesktop.swingx.mapviewer.empty.EmptyTileFactory;
 import org.jdesktop.swingx.painter.AbstractPainter;
 import org.jdesktop.swingx.painter.Painter;
+import org.jdesktop.swingx.util.GraphicsUtilities;
 
 /**
  * A tile oriented map component that can easily be used with tile sources
@@ -94,6 +101,18 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	 */
 	private boolean drawTileBorders = false;
 
+	/**
+	 * Indicates whether tiles which are still loading are drawn from cached
+	 * tiles of other zoom levels. Defaults to true.
+	 */
+	private boolean drawFallbackTiles = true;
+
+	/**
+	 * The number of coarser zoom levels searched for a fallback tile.
+	 */
+	private static final int MAX_FALLBACK_LEVELS = 4;
+	private final BufferedImage[] fallbackChildren = new BufferedImage[4];
+
 	/**
 	 * Factory used by this component to grab the tiles necessary for painting
 	 * the map.
@@ -143,6 +162,22 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	private boolean restrictOutsidePanning = false;
 	private boolean horizontalWrapped = true;
 
+	/**
+	 * The back buffer of the tile layer used for incremental repaints, and the
+	 * state it has been drawn for.
+	 */
+	private boolean incrementalRepaint = false;
+	private BufferedImage mapBuffer;
+	private boolean mapBufferValid;
+	private int mapBufferScale;
+	private int mapBufferZoom;
+	private int mapBufferX;
+	private int mapBufferY;
+	private TileFactory mapBufferFactory;
+	private Color mapBufferBackground;
+	private boolean mapBufferOpaque;
+	private final List<Tile> dirtyTiles = new ArrayList<Tile>();
+
 	/**
 	 * The zoom style for zooming using the mouse wheel
 	 */
@@ -201,13 +236,157 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 		} else {
 			int zoom = getZoom();
 			Rectangle viewportBounds = getViewportBounds();
-			drawMapTiles(g, zoom, viewportBounds);
+			// let the factory load the tiles in the middle of the screen first
+			getTileFactory().setViewport(this, zoom, viewportBounds);
+			if (!isIncrementalRepaint() || !drawMapBuffer(g, zoom, viewportBounds)) {
+				drawMapTiles(g, zoom, viewportBounds);
+			}
 			drawOverlays(zoom, g, viewportBounds);
 		}
 
 		super.paintBorder(g);
 	}
 
+	/**
+	 * Draws the tile layer through the back buffer. Only the parts of the
+	 * buffer which are outdated are drawn again: the strips exposed by panning
+	 * and the tiles loaded since the last paint.
+	 * @return false if the buffer cannot be used for the given graphics
+	 */
+	private boolean drawMapBuffer(Graphics g, int zoom, Rectangle viewportBounds) {
+		int width = viewportBounds.width;
+		int height = viewportBounds.height;
+		if (!(g instanceof Graphics2D) || width <= 0 || height <= 0) {
+			return false;
+		}
+
+		// on scaled displays the buffer has device resolution, which only works for integral scales
+		AffineTransform transform = ((Graphics2D) g).getTransform();
+		double scale = transform.getScaleX();
+		if (scale < 1 || scale != Math.rint(scale) || scale != transform.getScaleY()
+				|| transform.getShearX() != 0 || transform.getShearY() != 0) {
+			return false;
+		}
+
+		int s = (int) scale;
+		if (mapBuffer == null || mapBuffer.getWidth() != width * s || mapBuffer.getHeight() != height * s) {
+			mapBuffer = GraphicsUtilities.createCompatibleTranslucentImage(width * s, height * s);
+			mapBufferValid = false;
+		}
+
+		if (!mapBufferValid || mapBufferScale != s || mapBufferZoom != zoom || mapBufferFactory != getTileFactory()
+				|| mapBufferOpaque != isOpaque() || !Objects.equals(getBackground(), mapBufferBackground)) {
+			redrawMapBuffer(s, zoom, viewportBounds, 0, 0, width, height);
+		} else {
+			int dx = mapBufferX - viewportBounds.x;
+			int dy = mapBufferY - viewportBounds.y;
+			if (Math.abs(dx) >= width || Math.abs(dy) >= height) {
+				redrawMapBuffer(s, zoom, viewportBounds, 0, 0, width, height);
+			} else {
+				if (dx != 0 || dy != 0) {
+					// shift what is still visible and draw the exposed strips only
+					Graphics2D bg = mapBuffer.createGraphics();
+					bg.copyArea(0, 0, width * s, height * s, dx * s, dy * s);
+					bg.dispose();
+					if (dx > 0) {
+						redrawMapBuffer(s, zoom, viewportBounds, 0, 0, dx, height);
+					} else if (dx < 0) {
+						redrawMapBuffer(s, zoom, viewportBounds, width + dx, 0, -dx, height);
+					}
+					if (dy > 0) {
+						redrawMapBuffer(s, zoom, viewportBounds, 0, 0, width, dy);
+					} else if (dy < 0) {
+						redrawMapBuffer(s, zoom, viewportBounds, 0, height + dy, width, -dy);
+					}
+				}
+
+				int size = getTileFactory().getTileSize(zoom);
+				int mapWidth = getTileFactory().getMapSize(zoom).width * size;
+				for (Tile tile : dirtyTiles) {
+					if (tile.getZoom() != zoom) {
+						continue;
+					}
+					int sy = tile.getY() * size - viewportBounds.y;
+					for (int sx = firstTileScreenX(tile.getX(), size, mapWidth, viewportBounds.x); sx < width; sx += mapWidth) {
+						redrawMapBuffer(s, zoom, viewportBounds, sx, sy, size, size);
+					}
+				}
+			}
+		}
+		dirtyTiles.clear();
+
+		mapBufferValid = true;
+		mapBufferScale = s;
+		mapBufferZoom = zoom;
+		mapBufferX = viewportBounds.x;
+		mapBufferY = viewportBounds.y;
+		mapBufferFactory = getTileFactory();
+		mapBufferOpaque = isOpaque();
+		mapBufferBackground = getBackground();
+
+		g.drawImage(mapBuffer, 0, 0, width, height, null);
+		return true;
+	}
+
+	/**
+	 * Draws the tiles intersecting the given area of the viewport into the back buffer.
+	 */
+	private void redrawMapBuffer(int scale, int zoom, Rectangle viewportBounds, int x, int y, int width, int height) {
+		Graphics2D bg = mapBuffer.createGraphics();
+		try {
+			bg.scale(scale, scale);
+			bg.clipRect(x, y, width, height);
+			bg.setComposite(AlphaComposite.Clear);
+			bg.fillRect(x, y, width, height);
+			bg.setComposite(AlphaComposite.SrcOver);
+			drawMapTiles(bg, zoom, viewportBounds);
+		} finally {
+			bg.dispose();
+		}
+	}
+
+	/**
+	 * Returns the left edge of the first copy of a tile column which
+	 * intersects the viewport. Further copies follow every map width, as the
+	 * map wraps around horizontally.
+	 */
+	private static int firstTileScreenX(int tileX, int size, int mapWidth, int viewportX) {
+		return Math.floorMod(tileX * size - viewportX + size - 1, mapWidth) - size + 1;
+	}
+
+	/**
+	 * Indicates whether the map is repainted incrementally.
+	 * @return true if the tile layer is painted through a back buffer
+	 */
+	public boolean isIncrementalRepaint() {
+		return incrementalRepaint;
+	}
+
+	/**
+	 * Paints the tile layer through a back buffer. When the map is panned, the
+	 * buffer is shifted and only the newly exposed strips are drawn. Loaded
+	 * tiles are drawn into the buffer as they arrive. The overlay is painted
+	 * on top of the buffer as usual. Defaults to false.
+	 * @param incrementalRepaint true to repaint the tile layer incrementally
+	 */
+	public void setIncrementalRepaint(boolean incrementalRepaint) {
+		boolean old = isIncrementalRepaint();
+		this.incrementalRepaint = incrementalRepaint;
+		mapBuffer = null;
+		mapBufferValid = false;
+		dirtyTiles.clear();
+		firePropertyChange("incrementalRepaint", old, isIncrementalRepaint());
+		repaint();
+	}
+
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		if (getTileFactory() != null) {
+			getTileFactory().removeViewport(this);
+		}
+	}
+
 	/**
 	 * Indicate that the component is being used at design time, such as in a visual
 	 * editor like NetBeans' Matisse
@@ -237,67 +416,148 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	 * @param viewportBounds the bounds to draw within
 	 */
 	protected void drawMapTiles(final Graphics g, final int zoom, Rectangle viewportBounds) {
-		int size = getTileFactory().getTileSize(zoom);
-		Dimension mapSize = getTileFactory().getMapSize(zoom);
+		TileFactory factory = getTileFactory();
+		int size = factory.getTileSize(zoom);
+		Dimension mapSize = factory.getMapSize(zoom);
+
+		// the painted area in viewport coordinates, computed once per frame
+		int clipMinX = 0;
+		int clipMinY = 0;
+		int clipMaxX = viewportBounds.width;
+		int clipMaxY = viewportBounds.height;
+		Rectangle clip = g.getClipBounds();
+		if (clip != null) {
+			clipMinX = Math.max(clipMinX, clip.x);
+			clipMinY = Math.max(clipMinY, clip.y);
+			clipMaxX = Math.min(clipMaxX, clip.x + clip.width);
+			clipMaxY = Math.min(clipMaxY, clip.y + clip.height);
+		}
+		if (clipMinX >= clipMaxX || clipMinY >= clipMaxY) {
+			return;
+		}
 
-		//calculate the "visible" viewport area in tiles
-		int numWide = viewportBounds.width/size+2;
-		int numHigh = viewportBounds.height/size+2;
+		//only visit the tiles which intersect the area being painted
+		int firstX = Math.floorDiv(viewportBounds.x + clipMinX, size);
+		int firstY = Math.floorDiv(viewportBounds.y + clipMinY, size);
+		int lastX = Math.floorDiv(viewportBounds.x + clipMaxX - 1, size);
+		int lastY = Math.floorDiv(viewportBounds.y + clipMaxY - 1, size);
 
-		//TilePoint topLeftTile = getTileFactory().getTileCoordinate(
-		//        new Point2D.Double(viewportBounds.x, viewportBounds.y));
-		TileFactoryInfo info = getTileFactory().getInfo();
-		int tpx = (int)Math.floor(viewportBounds.getX() / info.getTileSize(0));
-		int tpy = (int)Math.floor(viewportBounds.getY() / info.getTileSize(0));
-		//TilePoint topLeftTile = new TilePoint(tpx, tpy);
+		Image loading = getLoadingImage();
+		int imageX = (size - loading.getWidth(null)) / 2;
+		int imageY = (size - loading.getHeight(null)) / 2;
+		boolean opaque = isOpaque();
+		boolean drawTileBorders = isDrawTileBorders();
 
-		//p("top tile = " + topLeftTile);
 		//fetch the tiles from the factory and store them in the tiles cache
 		//attach the tileLoadListener
-		for(int x=0; x<=numWide; x++) {
-			for(int y=0; y<=numHigh; y++) {
-				int itpx = x + tpx;//topLeftTile.getX();
-				int itpy = y + tpy;//topLeftTile.getY();
-				//TilePoint point = new TilePoint(x + topLeftTile.getX(), y + topLeftTile.getY());
-				//only proceed if the specified tile point lies within the area being painted
-				if (g.getClipBounds().intersects(new Rectangle(itpx * size - viewportBounds.x,
-						itpy * size - viewportBounds.y, size, size))) {
-					Tile tile =  getTileFactory().getTile(itpx,itpy, zoom);
-					tile.addUniquePropertyChangeListener("loaded", tileLoadListener); //this is a filthy hack
-					int ox = ((itpx * getTileFactory().getTileSize(zoom)) - viewportBounds.x);
-					int oy = ((itpy * getTileFactory().getTileSize(zoom)) - viewportBounds.y);
-
-					//if the tile is off the map to the north/south, then just don't paint anything
-					if (isTileOnMap(itpx,itpy,mapSize)) {
-						if (isOpaque()) {
-							g.setColor(getBackground());
-							g.fillRect(ox,oy,size,size);
-						}
-					} else if(tile.isLoaded()) {
-						g.drawImage(tile.getImage(), ox, oy, null);
-					} else {
-						int imageX = (getTileFactory().getTileSize(zoom) - getLoadingImage().getWidth(null)) / 2;
-						int imageY = (getTileFactory().getTileSize(zoom) - getLoadingImage().getHeight(null)) / 2;
-						g.setColor(Color.GRAY);
+		for (int itpy = firstY; itpy <= lastY; itpy++) {
+			int oy = itpy * size - viewportBounds.y;
+			for (int itpx = firstX; itpx <= lastX; itpx++) {
+				int ox = itpx * size - viewportBounds.x;
+				Tile tile = factory.getTile(itpx, itpy, zoom);
+				tile.addUniquePropertyChangeListener("loaded", tileLoadListener); //this is a filthy hack
+
+				//if the tile is off the map to the north/south, then just don't paint anything
+				if (isTileOnMap(itpx,itpy,mapSize)) {
+					if (opaque) {
+						g.setColor(getBackground());
 						g.fillRect(ox,oy,size,size);
-						g.drawImage(getLoadingImage(), ox + imageX, oy + imageY, null);
 					}
-					if(isDrawTileBorders()) {
-
-						g.setColor(Color.black);
-						g.drawRect(ox,oy,size,size);
-						g.drawRect(ox+size/2-5,oy+size/2-5,10,10);
-						g.setColor(Color.white);
-						g.drawRect(ox+1,oy+1,size,size);
-
-						String text = itpx + ", " + itpy + ", " + getZoom();
-						g.setColor(Color.BLACK);
-						g.drawString(text, ox+10,oy+30);
-						g.drawString(text, ox+10+2,oy+30+2);
-						g.setColor(Color.WHITE);
-						g.drawString(text, ox+10+1,oy+30+1);
+				} else if(tile.isLoaded()) {
+					g.drawImage(tile.getImage(), ox, oy, null);
+				} else if (!drawFallbackTiles || !drawFallbackTile(g, factory, itpx, itpy, zoom, ox, oy, size)) {
+					g.setColor(Color.GRAY);
+					g.fillRect(ox,oy,size,size);
+					g.drawImage(loading, ox + imageX, oy + imageY, null);
+				}
+				if(drawTileBorders) {
+
+					g.setColor(Color.black);
+					g.drawRect(ox,oy,size,size);
+					g.drawRect(ox+size/2-5,oy+size/2-5,10,10);
+					g.setColor(Color.white);
+					g.drawRect(ox+1,oy+1,size,size);
+
+					String text = itpx + ", " + itpy + ", " + getZoom();
+					g.setColor(Color.BLACK);
+					g.drawString(text, ox+10,oy+30);
+					g.drawString(text, ox+10+2,oy+30+2);
+					g.setColor(Color.WHITE);
+					g.drawString(text, ox+10+1,oy+30+1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws a tile which is still loading from cached tiles of other zoom
+	 * levels: a scaled section of the closest coarser tile in memory, covered
+	 * by those of the four finer tiles which are in memory. No tiles are
+	 * loaded for this.
+	 * @return false if no fallback tile is in memory
+	 */
+	private boolean drawFallbackTile(Graphics g, TileFactory factory, int tileX, int tileY, int zoom, int ox, int oy, int size) {
+		TileFactoryInfo info = factory.getInfo();
+		tileX = Math.floorMod(tileX, info.getMapWidthInTilesAtZoom(zoom));
+
+		int children = 0;
+		for (int i = 0; i < 4; i++) {
+			fallbackChildren[i] = factory.getCachedTileImage(2 * tileX + (i & 1), 2 * tileY + (i >> 1), zoom - 1);
+			if (fallbackChildren[i] != null) {
+				children++;
+			}
+		}
+
+		Object interpolation = null;
+		if (g instanceof Graphics2D) {
+			interpolation = ((Graphics2D) g).getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+			if (interpolation == null) {
+				// nearest neighbor is what images are drawn with if no hint is set
+				interpolation = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+			}
+			((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		}
+
+		try {
+			boolean drawn = false;
+			if (children < 4) {
+				for (int level = 1; level <= MAX_FALLBACK_LEVELS && zoom + level <= info.getMaximumZoomLevel(); level++) {
+					BufferedImage parent = factory.getCachedTileImage(tileX >> level, tileY >> level, zoom + level);
+					if (parent == null) {
+						continue;
+					}
+
+					// the section of the coarser tile covering this tile
+					int section = parent.getWidth() >> level;
+					if (section == 0) {
+						break;
+					}
+					int sx = (tileX & ((1 << level) - 1)) * section;
+					int sy = (tileY & ((1 << level) - 1)) * section;
+					g.drawImage(parent, ox, oy, ox + size, oy + size, sx, sy, sx + section, sy + section, null);
+					drawn = true;
+					break;
+				}
+			}
+
+			if (children > 0) {
+				if (!drawn) {
+					g.setColor(Color.GRAY);
+					g.fillRect(ox, oy, size, size);
+				}
+				int half = size / 2;
+				for (int i = 0; i < 4; i++) {
+					if (fallbackChildren[i] != null) {
+						g.drawImage(fallbackChildren[i], ox + (i & 1) * half, oy + (i >> 1) * half, half, half, null);
+						fallbackChildren[i] = null;
 					}
 				}
+				drawn = true;
+			}
+			return drawn;
+		} finally {
+			if (interpolation != null) {
+				((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
 			}
 		}
 	}
@@ -456,6 +716,30 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 		return drawTileBorders;
 	}
 
+	/**
+	 * Indicates if tiles which are still loading are drawn from cached tiles
+	 * of other zoom levels.
+	 * @return the value of this property
+	 */
+	public boolean isDrawFallbackTiles() {
+		return drawFallbackTiles;
+	}
+
+	/**
+	 * Set if tiles which are still loading are drawn from cached tiles of
+	 * other zoom levels instead of the loading image. After zooming, the map
+	 * then shows the scaled tiles of the previous zoom level until the new
+	 * ones arrive.
+	 * @param drawFallbackTiles new value of this property
+	 */
+	public void setDrawFallbackTiles(boolean drawFallbackTiles) {
+		boolean old = isDrawFallbackTiles();
+		this.drawFallbackTiles = drawFallbackTiles;
+		mapBufferValid = false;
+		firePropertyChange("drawFallbackTiles", old, isDrawFallbackTiles());
+		repaint();
+	}
+
 	/**
 	 * Set if the tile borders should be drawn. Mainly used for debugging.
 	 * @param drawTileBorders new value of this drawTileBorders
@@ -463,6 +747,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	public void setDrawTileBorders(boolean drawTileBorders) {
 		boolean old = isDrawTileBorders();
 		this.drawTileBorders = drawTileBorders;
+		mapBufferValid = false;
 		firePropertyChange("drawTileBorders", old, isDrawTileBorders());
 		repaint();
 	}
@@ -541,6 +826,9 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	 * @param factory the new property value
 	 */
 	public void setTileFactory(TileFactory factory) {
+		if (this.factory != null) {
+			this.factory.removeViewport(this);
+		}
 		this.factory = factory;
 		this.setZoom(factory.getInfo().getDefaultZoomLevel());
 	}
@@ -561,6 +849,7 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 	 */
 	public void setLoadingImage(Image loadingImage) {
 		this.loadingImage = loadingImage;
+		mapBufferValid = false;
 	}
 
 	/**
@@ -701,22 +990,21 @@ public class JXMapViewer extends JXPanel implements DesignMode {
 					Boolean.TRUE.equals(evt.getNewValue())) {
 				Tile t = (Tile)evt.getSource();
 				if (t.getZoom() == getZoom()) {
-					repaint();
-					/* this optimization doesn't save much and it doesn't work if you
-					 * wrap around the world
-                    Rectangle viewportBounds = getViewportBounds();
-                    TilePoint tilePoint = t.getLocation();
-                    Point point = new Point(tilePoint.getX() * getTileFactory().getTileSize(), tilePoint.getY() * getTileFactory().getTileSize());
-                    Rectangle tileRect = new Rectangle(point, new Dimension(getTileFactory().getTileSize(), getTileFactory().getTileSize()));
-                    if (viewportBounds.intersects(tileRect)) {
-                        //convert tileRect from world space to viewport space
-                        repaint(new Rectangle(
-                                tileRect.x - viewportBounds.x,
-                                tileRect.y - viewportBounds.y,
-                                tileRect.width,
-                                tileRect.height
-                                ));
-                    }*/
+					if (isIncrementalRepaint() && mapBufferValid) {
+						dirtyTiles.add(t);
+					}
+
+					// repaint every copy of the tile, the world may wrap around within the viewport
+					Rectangle viewportBounds = getViewportBounds();
+					int size = getTileFactory().getTileSize(t.getZoom());
+					int mapWidth = getTileFactory().getMapSize(t.getZoom()).width * size;
+					int sy = t.getY() * size - viewportBounds.y;
+					if (sy + size <= 0 || sy >= viewportBounds.height) {
+						return;
+					}
+					for (int sx = firstTileScreenX(t.getX(), size, mapWidth, viewportBounds.x); sx < viewportBounds.width; sx += mapWidth) {
+						repaint(sx, sy, size, size);
+					}
 				}
 			}
 		}
@@ -1,26 +1,31 @@
 package org.jdesktop.swingx.mapviewer;
 
 import org.jdesktop.swingx.mapviewer.util.GeoUtil;
-import org.jdesktop.swingx.util.GraphicsUtilities;
 
-import javax.swing.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Comparator;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,6 +36,9 @@ import java.util.logging.Logger;
 public abstract class AbstractTileFactory extends TileFactory {
 
 	private static final Logger LOG = Logger.getLogger(AbstractTileFactory.class.getName()); 
+	private static final long REVALIDATION_RETRY_DELAY = 60 * 1000;
+	// how often the visible tiles are checked for staleness
+	private static final long REVALIDATION_INTERVAL = TileFreshness.MIN_LIFETIME;
 	static {
 		LOG.setLevel(Level.OFF);
 	}
@@ -41,18 +49,41 @@ public abstract class AbstractTileFactory extends TileFactory {
 	 */
 	public AbstractTileFactory(TileFactoryInfo info) {
 		super(info);
+		scheduler = new TileScheduler(this);
+		metrics = TileMetrics.forName(String.valueOf(info.getName()));
+		cache.setMetrics(metrics);
+		TileMemoryGovernor.getInstance().register(cache);
 	}
 
 	//private static final boolean doEagerLoading = true;
 
 	private int threadPoolSize = 4;
 	private ExecutorService service;    
+	private boolean virtualThreads;
 
 	//TODO the tile map should be static ALWAYS, regardless of the number
 	//of GoogleTileFactories because each tile is, really, a singleton.
-	private WeakHashMap<String, Tile> tileMap = new WeakHashMap<String, Tile>();
+	private final TileMap tileMap = new TileMap();
 
 	private TileCache cache = new TileCache();
+	private DiskTileStore diskTileStore;
+	private final TileMetrics metrics;
+	private final TileScheduler scheduler;
+	private volatile TilePrefetcher prefetcher;
+	private final AtomicInteger prefetching = new AtomicInteger();
+	// the runners on virtual threads, which are not bounded by a pool
+	private final AtomicInteger virtualRunners = new AtomicInteger();
+	private final AtomicBoolean prefetchWakeUpScheduled = new AtomicBoolean();
+	private final AtomicBoolean revalidationScheduled = new AtomicBoolean();
+	// the latest viewport of each owner not yet handed to the prefetcher
+	private final Map<Object, PendingPrefetch> pendingPrefetches = new LinkedHashMap<Object, PendingPrefetch>();
+	private final AtomicBoolean prefetchScheduled = new AtomicBoolean();
+	private ScheduledExecutorService timer;
+	private final Set<Tile> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Tile, Boolean>());
+	private final SingleFlight<URI, BufferedImage> loads = new SingleFlight<URI, BufferedImage>();
+	private final TileFailures failures = new TileFailures();
+	// the tiles currently shown by a viewport, their images must not be collected
+	private final List<Tile> pinned = new ArrayList<Tile>();
 
 	/**
 	 * Returns
@@ -79,35 +110,40 @@ public abstract class AbstractTileFactory extends TileFactory {
 	private Tile getTile(int tpx, int tpy, int zoom, boolean eagerLoad) {
 		//wrap the tiles horizontally --> mod the X with the max width
 		//and use that
-		int tileX = tpx;//tilePoint.getX();
-		int numTilesWide = (int)getMapSize(zoom).getWidth();
+		int numTilesWide = getInfo().getMapWidthInTilesAtZoom(zoom);
+		int tileX = tpx % numTilesWide;
 		if (tileX < 0) {
-			tileX = numTilesWide - (Math.abs(tileX)  % numTilesWide);
+			tileX += numTilesWide;
 		}
-
-		tileX = tileX % numTilesWide;
 		int tileY = tpy;
-		//TilePoint tilePoint = new TilePoint(tileX, tpy);
-		String url = getInfo().getTileUrl(tileX, tileY, zoom);//tilePoint);
-		//System.out.println("loading: " + url);
-
 
 		Tile.Priority pri = Tile.Priority.High;
 		if (!eagerLoad) {
 			pri = Tile.Priority.Low;
 		}
-		Tile tile = null;
-		//System.out.println("testing for validity: " + tilePoint + " zoom = " + zoom);
-		if (!tileMap.containsKey(url)) {
-			if (!GeoUtil.isValidTile(tileX, tileY, zoom, getInfo())) {
-				tile = new Tile(tileX, tileY, zoom);
-			}  else {
-				tile = new Tile(tileX, tileY, zoom, url, pri, this);
-				startLoading(tile);
+		Tile tile;
+		boolean created = false;
+		// the URL of a tile is only built once its load starts
+		synchronized (tileMap) {
+			tile = tileMap.get(tileX, tileY, zoom);
+			if (tile == null) {
+				if (!GeoUtil.isValidTile(tileX, tileY, zoom, getInfo())) {
+					tile = new Tile(tileX, tileY, zoom);
+				} else {
+					tile = new Tile(tileX, tileY, zoom, pri, this);
+					created = true;
+				}
+				tileMap.put(tile);
 			}
-			tileMap.put(url,tile);
-		}  else {
-			tile = tileMap.get(url);
+		}
+
+		if (eagerLoad && !tile.pinned) {
+			pinIfVisible(tile);
+		}
+
+		if (created) {
+			startLoading(tile);
+		} else {
 			// if its in the map but is low and isn't loaded yet
 			// but we are in high mode
 			if (tile.getPriority()  == Tile.Priority.Low && eagerLoad && !tile.isLoaded()) {
@@ -115,35 +151,111 @@ public abstract class AbstractTileFactory extends TileFactory {
 				//tile.promote();
 				promote(tile);
 			}
+			if (tile.cancelled && !tile.isLoaded()) {
+				// loading was cancelled while the tile was out of sight
+				startLoading(tile);
+			}
+			long retryAt = tile.retryAt;
+			if (retryAt != 0 && !tile.isLoaded() && !tile.isLoading() && System.currentTimeMillis() >= retryAt) {
+				// the tile has failed before, try again now that its backoff has passed
+				startLoading(tile);
+			}
 		}
 
-		/*
-        if (eagerLoad && doEagerLoading) {
-            for (int i = 0; i<1; i++) {
-                for (int j = 0; j<1; j++) {
-                    // preload the 4 tiles under the current one
-                    if(zoom > 0) {
-                        eagerlyLoad(tilePoint.getX()*2,   tilePoint.getY()*2,   zoom-1);
-                        eagerlyLoad(tilePoint.getX()*2+1, tilePoint.getY()*2,   zoom-1);
-                        eagerlyLoad(tilePoint.getX()*2,   tilePoint.getY()*2+1, zoom-1);
-                        eagerlyLoad(tilePoint.getX()*2+1, tilePoint.getY()*2+1, zoom-1);
-                    }
-                }
-            }
-        }*/
+		return tile;
+	}
 
+	private void pinIfVisible(Tile tile) {
+		if (scheduler.isVisible(tile)) {
+			synchronized (pinned) {
+				if (tile.pinned) {
+					return;
+				}
+				tile.pin();
+				pinned.add(tile);
+			}
 
-		return tile;
+			// a tile coming into sight is checked once, visible tiles periodically
+			if (tile.isLoaded()) {
+				revalidateIfStale(tile);
+			}
+			scheduleRevalidation();
+		}
+	}
+
+	/**
+	 * Checks the visible tiles for staleness after the revalidation interval,
+	 * as long as any tile is visible.
+	 */
+	private void scheduleRevalidation() {
+		if (!revalidationScheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				revalidationScheduled.set(false);
+				List<Tile> visible;
+				synchronized (pinned) {
+					if (pinned.isEmpty()) {
+						return;
+					}
+					visible = new ArrayList<Tile>(pinned);
+				}
+
+				for (Tile tile : visible) {
+					if (tile.isLoaded()) {
+						revalidateIfStale(tile);
+					}
+				}
+				scheduleRevalidation();
+			}
+		}, REVALIDATION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Releases the images of the tiles that have left all viewports.
+	 */
+	private void unpinInvisible() {
+		synchronized (pinned) {
+			int kept = 0;
+			for (int i = 0; i < pinned.size(); i++) {
+				Tile tile = pinned.get(i);
+				if (scheduler.isVisible(tile)) {
+					pinned.set(kept++, tile);
+				} else {
+					tile.unpin();
+				}
+			}
+			pinned.subList(kept, pinned.size()).clear();
+		}
 	}
 
-	/*
-    private void eagerlyLoad(int x, int y, int zoom) {
-        TilePoint t1 = new TilePoint(x,y);
-        if(!isLoaded(t1,zoom)) {
-            getTile(t1,zoom,false);
-        }
-    }
+	@Override
+	public BufferedImage getCachedTileImage(int x, int y, int zoom) {
+		TileFactoryInfo info = getInfo();
+		if (zoom < info.getMinimumZoomLevel() || zoom > info.getMaximumZoomLevel()) {
+			return null;
+		}
+
+		int numTilesWide = info.getMapWidthInTilesAtZoom(zoom);
+		int tileX = x % numTilesWide;
+		if (tileX < 0) {
+			tileX += numTilesWide;
+		}
+		Tile tile;
+		synchronized (tileMap) {
+			tile = tileMap.get(tileX, y, zoom);
+		}
+		return tile != null && tile.isLoaded() ? tile.image.get() : null;
+	}
+
+	/**
+	 * Requests a tile with low priority, used by the {@link TilePrefetcher}.
 	 */
+	void prefetch(int x, int y, int zoom) {
+		getTile(x, y, zoom, false);
+	}
 
 
 
@@ -156,13 +268,105 @@ public abstract class AbstractTileFactory extends TileFactory {
 		return cache;
 	}
 
+	/**
+	 * Sets the cache used to store loaded tiles. Use a {@link ConcurrentTileCache}
+	 * if many threads load tiles concurrently.
+	 * @param cache the tile cache
+	 */
 	public void setTileCache(TileCache cache) {
+		TileCache old = this.cache;
+		if (old == cache) {
+			return;
+		}
+
+		cache.setMetrics(metrics);
+		TileMemoryGovernor.getInstance().register(cache);
 		this.cache = cache;
+
+		// the old cache may still be used elsewhere, it must not report to this factory
+		if (old.getMetrics() == metrics) {
+			old.setMetrics(null);
+		}
+		TileMemoryGovernor.getInstance().unregister(old);
+	}
+
+	/**
+	 * Gets the metrics of the tile pipeline. All factories using a
+	 * <code>TileFactoryInfo</code> of the same name share their metrics.
+	 * @return the metrics of this factory
+	 */
+	public TileMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the persistent store below the tile cache.
+	 * @return the disk tile store, or null if tiles are not stored on disk
+	 */
+	public DiskTileStore getDiskTileStore() {
+		return diskTileStore;
+	}
+
+	/**
+	 * Sets a persistent store for compressed tiles. Tiles missing from the tile
+	 * cache are looked up in this store before they are downloaded, and every
+	 * downloaded tile is written to it.
+	 * @param diskTileStore the disk tile store, or null to disable it
+	 */
+	public void setDiskTileStore(DiskTileStore diskTileStore) {
+		this.diskTileStore = diskTileStore;
+	}
+
+	/**
+	 * Gets the prefetcher loading tiles before they become visible.
+	 * @return the prefetcher, or null if prefetching is disabled
+	 */
+	public TilePrefetcher getTilePrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * Sets a prefetcher which loads tiles around the viewports of this factory
+	 * before they become visible.
+	 * @param prefetcher the prefetcher, or null to disable prefetching
+	 */
+	public void setTilePrefetcher(TilePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+		scheduler.setPrefetcher(prefetcher);
+	}
+
+	/**
+	 * Gets the policy for retrying failed tiles.
+	 * @return the retry policy
+	 */
+	public TileRetryPolicy getRetryPolicy() {
+		return failures.getPolicy();
+	}
+
+	/**
+	 * Sets the policy for retrying failed tiles, remembering missing tiles and
+	 * suspending requests to failing hosts.
+	 * @param retryPolicy the retry policy
+	 */
+	public void setRetryPolicy(TileRetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			throw new IllegalArgumentException("retryPolicy invalid: null. The retry policy must not be null.");
+		}
+		failures.setPolicy(retryPolicy);
 	}
 
 	public void clearTileCache() {
 		cache.clear();
-		tileMap.clear();
+		synchronized (tileMap) {
+			tileMap.clear();
+		}
+		synchronized (pinned) {
+			for (Tile tile : pinned) {
+				tile.unpin();
+			}
+			pinned.clear();
+		}
+		failures.clear();
 	}
 
 	public void shutdownTileServicePool() {
@@ -170,30 +374,96 @@ public abstract class AbstractTileFactory extends TileFactory {
 			service.shutdownNow();
 			service = null;
 		}
+		synchronized (this) {
+			if (timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+		}
+		revalidationScheduled.set(false);
+		prefetchScheduled.set(false);
 	}
 
 	/** ==== threaded tile loading stuff === */
+
 	/**
-	 * Thread pool for loading the tiles
+	 * Loads the tiles closest to the center of the given viewport first. Each
+	 * component showing the map of this factory has its own viewport, a tile is
+	 * prioritized by the viewport it is closest to. Queued and running loads of
+	 * tiles that have left all viewports are cancelled.
 	 */
-	private static BlockingQueue<Tile> tileQueue = new PriorityBlockingQueue<Tile>(5,
-			new Comparator<Tile>() {
-		public int compare(Tile o1, Tile o2) {
-			if(o1.getPriority() == Tile.Priority.Low && o2.getPriority() == Tile.Priority.High) {
-				return 1;
+	@Override
+	public void setViewport(Object owner, int zoom, Rectangle viewportBounds) {
+		if (scheduler.setViewport(owner, zoom, viewportBounds)) {
+			cancelUnwanted();
+			unpinInvisible();
+			if (prefetcher != null) {
+				schedulePrefetch(owner, zoom, viewportBounds);
 			}
-			if(o1.getPriority() == Tile.Priority.High && o2.getPriority() == Tile.Priority.Low ) {
-				return -1;
+		}
+	}
+
+	@Override
+	public void removeViewport(Object owner) {
+		scheduler.removeViewport(owner);
+		synchronized (pendingPrefetches) {
+			pendingPrefetches.remove(owner);
+		}
+		cancelUnwanted();
+		unpinInvisible();
+	}
+
+	/**
+	 * Hands a viewport to the prefetcher on the timer thread, so that requesting
+	 * the prefetched tiles does not slow down painting. If the viewport changes
+	 * faster than the prefetcher keeps up, only its latest bounds are prefetched.
+	 */
+	private void schedulePrefetch(Object owner, int zoom, Rectangle viewportBounds) {
+		synchronized (pendingPrefetches) {
+			pendingPrefetches.put(owner, new PendingPrefetch(owner, zoom, new Rectangle(viewportBounds)));
+		}
+		if (!prefetchScheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		getTimer().execute(new Runnable() {
+			public void run() {
+				// viewports changed from now on need another run
+				prefetchScheduled.set(false);
+				List<PendingPrefetch> viewports;
+				synchronized (pendingPrefetches) {
+					viewports = new ArrayList<PendingPrefetch>(pendingPrefetches.values());
+					pendingPrefetches.clear();
+				}
+
+				TilePrefetcher prefetcher = AbstractTileFactory.this.prefetcher;
+				if (prefetcher != null) {
+					for (PendingPrefetch viewport : viewports) {
+						prefetcher.prefetch(AbstractTileFactory.this, viewport.owner, viewport.zoom, viewport.bounds);
+					}
+				}
 			}
-			return 0;
+		});
+	}
 
+	private synchronized void cancelUnwanted() {
+		for (Tile tile : scheduler.removeUnwanted()) {
+			metrics.recordDequeued();
+			tile.cancelled = true;
+			tile.setLoading(false);
 		}
 
-		@Override
-		public boolean equals(Object obj) {
-			return obj == this;
+		for (Tile tile : inFlight) {
+			if (!scheduler.isWanted(tile)) {
+				tile.cancelled = true;
+				HttpURLConnection connection = tile.connection;
+				if (connection != null) {
+					// abort the download so the bandwidth goes to visible tiles
+					connection.disconnect();
+				}
+			}
 		}
-	});
+	}
 
 	/**
 	 * Subclasses may override this method to provide their own executor services. This 
@@ -202,6 +472,9 @@ public abstract class AbstractTileFactory extends TileFactory {
 	 * @return ExecutorService to load tiles with
 	 */
 	protected synchronized ExecutorService getService() {
+		if(service == null && virtualThreads) {
+			service = VirtualThreads.newExecutor("tile-loader-");
+		}
 		if(service == null) {
 			//System.out.println("creating an executor service with a threadpool of size " + threadPoolSize);
 			service = Executors.newFixedThreadPool(threadPoolSize, new ThreadFactory() {
@@ -222,18 +495,56 @@ public abstract class AbstractTileFactory extends TileFactory {
 
 	/**
 	 * Set the number of threads to use for loading the tiles. This controls the number of threads
-	 * used by the ExecutorService returned from getService(). Note, this method should
-	 * be called before loading the first tile. Calls after the first tile are loaded will
-	 * have no effect by default.
+	 * used by the ExecutorService returned from getService(). Calls after the first tile has
+	 * been loaded resize the default thread pool. Virtual threads are not pooled, their
+	 * number follows the connections per host allowed by the {@link HostConnectionGovernor}.
 	 * @param size 
 	 */
-	public void setThreadPoolSize(int size) {
+	public synchronized void setThreadPoolSize(int size) {
 		if(size <= 0) {
 			throw new IllegalArgumentException("size invalid: " + size + ". The size of the threadpool must be greater than 0.");
 		}
 		threadPoolSize = size;
+		if (service instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) service;
+			// the core size must never exceed the maximum size
+			if (size > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(size);
+				pool.setCorePoolSize(size);
+			} else {
+				pool.setCorePoolSize(size);
+				pool.setMaximumPoolSize(size);
+			}
+		}
 	}
 
+	/**
+	 * Indicates whether tiles are loaded on virtual threads.
+	 * @return true if virtual threads have been requested and are supported by the runtime
+	 */
+	public synchronized boolean isUseVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Loads each tile on its own virtual thread instead of a fixed pool of
+	 * platform threads. Blocking on slow tile servers then costs no platform
+	 * threads, and the number of concurrent loads follows the connections per
+	 * host allowed by the {@link HostConnectionGovernor}. Virtual threads require a Java 21
+	 * runtime, on older runtimes this setting has no effect.
+	 * @param virtualThreads true to load tiles on virtual threads
+	 */
+	public synchronized void setUseVirtualThreads(boolean virtualThreads) {
+		virtualThreads &= VirtualThreads.isSupported();
+		if (this.virtualThreads != virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			if (service != null) {
+				// running loads finish on the old executor
+				service.shutdown();
+				service = null;
+			}
+		}
+	}
 
 	@SuppressWarnings("unchecked")
 	protected synchronized void startLoading(Tile tile) {
@@ -241,10 +552,16 @@ public abstract class AbstractTileFactory extends TileFactory {
 			//System.out.println("already loading. bailing");
 			return;
 		}
+		if (System.currentTimeMillis() < tile.retryAt) {
+			// still backing off after a failure
+			return;
+		}
 		tile.setLoading(true);
+		tile.cancelled = false;
 		try {
-			tileQueue.put(tile);
-			getService().submit(createTileRunner(tile));
+			scheduler.offer(tile);
+			metrics.recordQueued();
+			startRunner(createTileRunner(tile));
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
@@ -259,18 +576,272 @@ public abstract class AbstractTileFactory extends TileFactory {
 	}
 
 
+	/**
+	 * Submits a runner that loads queued tiles. The pool bounds the runners on
+	 * platform threads. Runners on virtual threads are bounded by the connections
+	 * allowed per host: each runner takes the next tile right away, and a tile
+	 * waiting for a connection in the governor is no longer reordered when the
+	 * viewport changes, nor cancelled when it leaves the viewport.
+	 */
+	private void startRunner(final Runnable runner) {
+		if (!isUseVirtualThreads()) {
+			getService().submit(runner);
+			return;
+		}
+
+		int running;
+		do {
+			running = virtualRunners.get();
+			if (running >= HostConnectionGovernor.getInstance().getMaxConnectionsPerHost()) {
+				// a running runner picks up the tile
+				return;
+			}
+		} while (!virtualRunners.compareAndSet(running, running + 1));
+
+		getService().submit(new Runnable() {
+			public void run() {
+				try {
+					runner.run();
+				} finally {
+					virtualRunners.decrementAndGet();
+					// tiles queued while the runner was finishing
+					if (scheduler.hasNext(isPrefetchAllowed())) {
+						startRunner(new TileRunner());
+					}
+				}
+			}
+		});
+	}
+
 	/**
 	 * Increase the priority of this tile so it will be loaded sooner.
 	 */
 	public synchronized void promote(Tile tile) {
-		if(tileQueue.contains(tile)) {
+		tile.setPriority(Tile.Priority.High);
+		scheduler.update(tile);
+	}
+
+	/**
+	 * Checks whether another prefetched tile may be loaded now.
+	 */
+	private boolean isPrefetchAllowed() {
+		TilePrefetcher prefetcher = this.prefetcher;
+		return prefetcher == null
+				|| prefetching.get() < prefetcher.getMaxConcurrentLoads() && prefetcher.hasBandwidth();
+	}
+
+	/**
+	 * Submits a runner once the prefetch bandwidth budget allows further downloads.
+	 */
+	private void schedulePrefetchWakeUp() {
+		TilePrefetcher prefetcher = this.prefetcher;
+		if (prefetcher == null || scheduler.size() == 0 || !prefetchWakeUpScheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		long delay = prefetcher.getDelay();
+		if (delay <= 0) {
+			// a running prefetch will pick up the next tile when it finishes
+			prefetchWakeUpScheduled.set(false);
+			return;
+		}
+
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				prefetchWakeUpScheduled.set(false);
+				startRunner(new TileRunner());
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "tile-timer");
+					t.setPriority(Thread.MIN_PRIORITY);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Loads a tile from a local source before the disk tile store and the
+	 * network are asked. Factories backed by local tile data override this, the
+	 * default implementation returns null.
+	 * @param tile the tile to load
+	 * @return the decoded image, or null to load the tile from its URL
+	 * @throws IOException if the tile cannot be loaded
+	 */
+	protected BufferedImage loadLocalTile(Tile tile) throws IOException {
+		return null;
+	}
+
+	private byte[] loadFromDiskTileStore(URI uri) {
+		DiskTileStore store = diskTileStore;
+		if (store != null) {
 			try {
-				tileQueue.remove(tile);
-				tile.setPriority(Tile.Priority.High);
-				tileQueue.put(tile);
-			} catch (Exception ex) {
-				ex.printStackTrace();
+				return store.get(uri);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to read tile " + uri + " from disk.", e);
+			}
+		}
+		return null;
+	}
+
+	private TileFreshness loadFreshnessFromDiskTileStore(URI uri) {
+		DiskTileStore store = diskTileStore;
+		return store != null ? store.getFreshness(uri) : null;
+	}
+
+	private void saveToDiskTileStore(URI uri, byte[] bimg, TileFreshness freshness) {
+		DiskTileStore store = diskTileStore;
+		if (store != null) {
+			try {
+				store.put(uri, bimg, freshness);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to write tile " + uri + " to disk.", e);
+			}
+		}
+	}
+
+	private void removeFromDiskTileStore(URI uri) {
+		DiskTileStore store = diskTileStore;
+		if (store != null) {
+			try {
+				store.remove(uri);
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to remove tile " + uri + " from disk.", e);
+			}
+		}
+	}
+
+	private TileFetcher.Response cacheInputStream(URL url, Tile tile, TileFreshness cached) throws IOException {
+		String host = String.valueOf(url.getHost());
+		HostConnectionGovernor governor = HostConnectionGovernor.getInstance();
+		// fail fast without waiting for a connection the other tiles of the host need
+		failures.precheckHost(host, System.currentTimeMillis());
+		try {
+			governor.acquire(host, this);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + host + ".");
+		}
+
+		try {
+			// the breaker may have opened while waiting, and only one request probes an open breaker
+			failures.checkHost(host, System.currentTimeMillis());
+			try {
+				TileFetcher.Response response = TileFetcher.fetch(url, getHttpRequestProperties(), tile, cached);
+				failures.recordSuccess(host);
+				return response;
+			} catch (FileNotFoundException e) {
+				failures.recordSuccess(host);
+				throw e;
+			} catch (IOException e) {
+				if (!tile.cancelled) {
+					failures.recordFailure(host, System.currentTimeMillis());
+				}
+				throw e;
+			}
+		} finally {
+			governor.release(host);
+		}
+	}
+
+	/**
+	 * Loads a failed tile again once its backoff has passed, unless it has
+	 * left all viewports in the meantime.
+	 */
+	private void scheduleRetry(final Tile tile, long delay) {
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				if (!tile.isLoaded() && scheduler.isWanted(tile)) {
+					tile.retryAt = 0;
+					startLoading(tile);
+				}
 			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Revalidates a loaded tile in the background if its caching metadata says
+	 * it is stale. The stale image stays visible until the server has answered.
+	 * Called when a tile is loaded or comes into sight, and periodically for
+	 * the visible tiles, but not on every paint.
+	 */
+	private void revalidateIfStale(final Tile tile) {
+		final TileFreshness freshness = tile.freshness;
+		if (freshness == null || !freshness.isStale(System.currentTimeMillis())) {
+			return;
+		}
+
+		synchronized (this) {
+			if (tile.revalidating) {
+				return;
+			}
+			tile.revalidating = true;
+		}
+
+		getService().submit(new Runnable() {
+			public void run() {
+				try {
+					revalidate(tile, freshness);
+				} finally {
+					tile.revalidating = false;
+				}
+			}
+		});
+	}
+
+	private void revalidate(final Tile tile, TileFreshness cached) {
+		try {
+			URI uri = new URI(tile.getURL());
+			long start = System.nanoTime();
+			TileFetcher.Response response = cacheInputStream(uri.toURL(), tile, cached.hasValidators() ? cached : null);
+			if (response.isNotModified()) {
+				tile.freshness = response.freshness;
+				DiskTileStore store = diskTileStore;
+				if (store != null) {
+					store.setFreshness(uri, response.freshness);
+				}
+				return;
+			}
+
+			metrics.recordFetch(System.nanoTime() - start, response.bytes.length);
+			start = System.nanoTime();
+			final BufferedImage img = TileDecoder.decode(response.bytes);
+			metrics.recordDecode(System.nanoTime() - start);
+			if (img == null) {
+				throw new IOException("Failed to decode the revalidated tile.");
+			}
+
+			cache.put(uri, response.bytes, img);
+			saveToDiskTileStore(uri, response.bytes, response.freshness);
+			tile.freshness = response.freshness;
+			TilePublisher.publish(tile, img);
+		} catch (Exception e) {
+			LOG.log(Level.INFO, "Failed to revalidate tile " + tile.getURL() + ".", e);
+			// keep the stale tile for a while instead of retrying on every repaint
+			tile.freshness = cached.withExpires(System.currentTimeMillis() + REVALIDATION_RETRY_DELAY);
+		}
+	}
+
+	/**
+	 * A viewport waiting to be handed to the prefetcher.
+	 */
+	private static final class PendingPrefetch {
+		final Object owner;
+		final int zoom;
+		final Rectangle bounds;
+
+		PendingPrefetch(Object owner, int zoom, Rectangle bounds) {
+			this.owner = owner;
+			this.zoom = zoom;
+			this.bounds = bounds;
 		}
 	}
 
@@ -304,78 +875,186 @@ public abstract class AbstractTileFactory extends TileFactory {
 		 */
 		public void run() {
 			/*
-			 * 3 strikes and you're out. Attempt to load the url. If it fails,
-			 * decrement the number of tries left and try again. Log failures.
-			 * If I run out of try s just get out. This way, if there is some
-			 * kind of serious failure, I can get out and let other tiles
-			 * try to load.
+			 * Load queued tiles until the queue is empty. A failed tile is not
+			 * retried here, it is handed to the retry policy, which schedules
+			 * the next attempt after a backoff, so that other tiles can load.
 			 */
-			final Tile tile = tileQueue.remove();
+			while (true) {
+				// prefetched tiles are only loaded while the prefetch lane has room
+				boolean prefetchAllowed = isPrefetchAllowed();
+				final Tile tile = scheduler.poll(prefetchAllowed);
+				if (tile == null) {
+					if (!prefetchAllowed) {
+						schedulePrefetchWakeUp();
+					}
+					return;
+				}
 
-			int trys = 3;
-			while (!tile.isLoaded() && trys > 0) {
+				boolean prefetch = tile.getPriority() == Tile.Priority.Low;
+				if (prefetch) {
+					prefetching.incrementAndGet();
+				}
+
+				metrics.recordDequeued();
+				metrics.recordLoaderStarted();
+				inFlight.add(tile);
 				try {
-					BufferedImage img = null;
-					URI uri = getURI(tile);
-					img = cache.get(uri);
-					if(img == null) {
-						byte[] bimg = cacheInputStream(uri.toURL());
-						img = GraphicsUtilities.loadCompatibleImage(new ByteArrayInputStream(bimg));//ImageIO.read(new URL(tile.url));
-						cache.put(uri,bimg,img);
-						img = cache.get(uri);
-					}
-					if(img == null) {
-						//System.out.println("error loading: " + uri);
-						LOG.log(Level.INFO, "Failed to load: " + uri);
-						trys--;
-					} else {
-						final BufferedImage i = img;
-						SwingUtilities.invokeAndWait(new Runnable() {
-							public void run() {
-								tile.image = new WeakReference<BufferedImage>(i);
-								tile.setLoaded(true);
-							}
-						});
-					}
-				} catch (OutOfMemoryError memErr) {
-					cache.needMoreMemory();
-				} catch (Throwable e) {
-					LOG.log(Level.SEVERE,
-							"Failed to load a tile at url: " + tile.getURL() + ", retrying", e);
-					//temp
-					//System.err.println("Failed to load a tile at url: " + tile.getURL());
-					//e.printStackTrace();
-					///temp
-					Object oldError = tile.getError();
-					tile.setError(e);
-					tile.firePropertyChangeOnEDT("loadingError", oldError, e);
-					if (trys == 0) {
-						tile.firePropertyChangeOnEDT("unrecoverableError", null, e);
-					} else {
-						trys--;
+					load(tile);
+				} finally {
+					inFlight.remove(tile);
+					metrics.recordLoaderFinished();
+					if (prefetch) {
+						prefetching.decrementAndGet();
 					}
 				}
+
+				if (tile.cancelled && scheduler.isWanted(tile)) {
+					// the tile came back into sight while its load was being cancelled
+					startLoading(tile);
+				}
 			}
-			tile.setLoading(false);
 		}
 
-		private byte[] cacheInputStream(URL url) throws IOException {
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		private void load(final Tile tile) {
+			long retryDelay = -1;
+			boolean published = false;
+			URI uri = null;
+			BufferedImage cached = null;
+			try {
+				uri = getURI(tile);
+				long missingUntil = failures.getMissingUntil(uri, System.currentTimeMillis());
+				if (missingUntil != 0) {
+					// the server did not have the tile a short while ago
+					tile.retryAt = missingUntil;
+					return;
+				}
 
-			Map<String, String> requestProperties = getHttpRequestProperties();
-			if (requestProperties != null) {
-				requestProperties.forEach(connection::setRequestProperty);
+				// a cached image stays pinned until it has been published, so that
+				// it is not recycled if the cache evicts it in the meantime
+				cached = cache.get(uri);
+				BufferedImage img = cached;
+				if (img == null) {
+					final URI u = uri;
+					img = loads.execute(uri, new Callable<BufferedImage>() {
+						public BufferedImage call() throws IOException {
+							return loadImage(u, tile);
+						}
+					});
+				}
+				if (img == null) {
+					throw new FileNotFoundException("The tile " + uri + " is empty.");
+				}
+
+				// the tile stays loading until the EDT has picked up the image
+				TilePublisher.publish(tile, img);
+				published = true;
+				tile.failedAttempts = 0;
+				tile.retryAt = 0;
+				// tiles read from disk may be outdated
+				revalidateIfStale(tile);
+			} catch (Throwable e) {
+				if (!tile.cancelled) {
+					// the download has not been aborted on purpose
+					retryDelay = handleFailure(tile, uri, e);
+				}
+			} finally {
+				if (!published) {
+					tile.setLoading(false);
+				}
+				if (cached != null) {
+					TileRasterPool.getInstance().unpin(cached);
+				}
+			}
+
+			if (retryDelay >= 0) {
+				scheduleRetry(tile, retryDelay);
 			}
+		}
 
-			InputStream ins = connection.getInputStream();
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			byte[] buf = new byte[256];
-			while(true) {
-				int n = ins.read(buf);
-				if(n == -1) break;
-				bout.write(buf,0,n);
+		/**
+		 * Records a failed load and decides when the tile is tried again.
+		 * @return the delay in milliseconds until the tile is retried, or -1 if
+		 *         it is only retried when it is requested again
+		 */
+		private long handleFailure(Tile tile, URI uri, Throwable e) {
+			long now = System.currentTimeMillis();
+			if (e instanceof TileFailures.HostUnavailableException) {
+				// not the tile's fault, wait for the host to recover
+				long retryAt = ((TileFailures.HostUnavailableException) e).retryAt;
+				tile.retryAt = retryAt;
+				return Math.max(0, retryAt - now);
+			}
+
+			Object oldError = tile.getError();
+			tile.setError(e);
+			tile.firePropertyChangeOnEDT("loadingError", oldError, e);
+
+			if (e instanceof FileNotFoundException && uri != null) {
+				LOG.log(Level.INFO, "Tile not available: " + tile.getURL());
+				tile.retryAt = failures.markMissing(uri, now);
+				tile.firePropertyChangeOnEDT("unrecoverableError", null, e);
+				return -1;
+			}
+
+			TileRetryPolicy policy = getRetryPolicy();
+			int attempts = Math.min(tile.failedAttempts + 1, policy.getMaxAttempts());
+			tile.failedAttempts = attempts;
+			boolean givenUp = attempts >= policy.getMaxAttempts();
+			// a given up tile is only tried again once per maximum backoff while it is visible
+			long delay = givenUp ? TileRetryPolicy.jitter(policy.getMaxBackoff()) : policy.getBackoff(attempts);
+			tile.retryAt = now + delay;
+			if (!givenUp) {
+				LOG.log(Level.INFO, "Failed to load a tile at url: " + tile.getURL() + ", retrying in " + delay + " ms", e);
+				return delay;
+			}
+
+			LOG.log(Level.SEVERE, "Failed to load a tile at url: " + tile.getURL() + ", giving up", e);
+			tile.firePropertyChangeOnEDT("unrecoverableError", null, e);
+			return -1;
+		}
+
+		/**
+		 * Loads the image of a tile that is not in the tile cache from the disk
+		 * tile store or the network. Decoding happens without holding any lock.
+		 */
+		private BufferedImage loadImage(URI uri, Tile tile) throws IOException {
+			long start = System.nanoTime();
+			BufferedImage img = loadLocalTile(tile);
+			if (img != null) {
+				metrics.recordDecode(System.nanoTime() - start);
+				return img;
+			}
+
+			byte[] bimg = loadFromDiskTileStore(uri);
+			boolean stored = bimg != null;
+			TileFreshness freshness;
+			if (stored) {
+				freshness = loadFreshnessFromDiskTileStore(uri);
+			} else {
+				start = System.nanoTime();
+				TileFetcher.Response response = cacheInputStream(uri.toURL(), tile, null);
+				bimg = response.bytes;
+				freshness = response.freshness;
+				metrics.recordFetch(System.nanoTime() - start, bimg.length);
+				TilePrefetcher prefetcher = AbstractTileFactory.this.prefetcher;
+				if (prefetcher != null && tile.getPriority() == Tile.Priority.Low) {
+					prefetcher.consume(bimg.length);
+				}
+			}
+			start = System.nanoTime();
+			img = TileDecoder.decode(bimg);
+			metrics.recordDecode(System.nanoTime() - start);
+			if (img != null) {
+				tile.freshness = freshness;
+				if (!stored) {
+					saveToDiskTileStore(uri, bimg, freshness);
+				}
+				// the cache may reject the tile, so keep the decoded image
+				cache.put(uri,bimg,img);
+			} else if (stored) {
+				removeFromDiskTileStore(uri);
 			}
-			return bout.toByteArray();
+			return img;
 		}
 	}
 }
@@ -0,0 +1,631 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdesktop.swingx.JXMapViewer;
+
+/**
+ * A WaypointPainter that combines waypoints close to each other into clusters,
+ * so that large numbers of waypoints stay readable and fast to paint at low
+ * zoom levels. Each cluster is painted as one marker by the cluster renderer,
+ * single waypoints are painted by the waypoint renderer as usual.
+ * <p>
+ * The clusters of all zoom levels of the tile factory are kept in a hierarchy:
+ * at each zoom level the map is divided into cells of {@link #getCellSize()}
+ * pixels, the waypoints sharing a cell form a cluster, and each cluster is
+ * split into the clusters and waypoints of the cells one zoom level further in.
+ * Painting and hit-testing walk down this hierarchy and skip every cluster
+ * outside the viewport. Adding or removing a waypoint only updates the
+ * clusters on its path, see {@link #addWaypoint(Waypoint)} and
+ * {@link #removeWaypoint(Waypoint)}. Moved waypoints are picked up through
+ * their <code>position</code> property.
+ * <p>
+ * The hierarchy is rebuilt if the waypoint list is replaced or changed
+ * directly, or if the map uses another tile factory. Positions are projected
+ * once at the most detailed zoom level and scaled to the other levels, which
+ * is exact for all tile factories based on <code>GeoUtil</code>. A waypoint
+ * contained in the list more than once is clustered and painted once, until
+ * all of its copies have been removed.
+ * <p>
+ * The position listeners only hold the painter weakly, so a dropped painter
+ * can be collected while its waypoints live on. Call {@link #dispose()} to
+ * remove the listeners from the waypoints as well.
+ */
+public class ClusteringWaypointPainter<T extends JXMapViewer> extends WaypointPainter<T> {
+    private static final int DEFAULT_CELL_SIZE = 64;
+
+    private WaypointRenderer clusterRenderer = new DefaultClusterRenderer();
+    private int cellSize = DEFAULT_CELL_SIZE;
+
+    private TileFactory factory;
+    private int minZoom;
+    private int maxZoom;
+    // the size of a cell at each zoom level, relative to the map size
+    private double[] cellWidths;
+    private double[] cellHeights;
+    private double mapWidth;
+    private double mapHeight;
+    private final Map<Long, Node> roots = new HashMap<Long, Node>();
+    private final Map<Waypoint, Node> leaves = new IdentityHashMap<Waypoint, Node>();
+    private List<Waypoint> builtList;
+    private int builtSize;
+    private final PositionListener positionListener = new PositionListener(this);
+
+    // the clusters and waypoints found by the last traversal, and the copy of the viewport they are in
+    private final List<Node> found = new ArrayList<Node>();
+    private int[] foundCopies = new int[64];
+
+    /**
+     * Creates a new instance of ClusteringWaypointPainter
+     */
+    public ClusteringWaypointPainter() {
+    }
+
+    /**
+     * Gets the renderer used to paint clusters
+     * @return the cluster renderer
+     */
+    public WaypointRenderer getClusterRenderer() {
+        return clusterRenderer;
+    }
+
+    /**
+     * Sets the renderer used to paint clusters. The renderer is called with a
+     * {@link Cluster} as waypoint.
+     * @param clusterRenderer the new cluster renderer
+     */
+    public void setClusterRenderer(WaypointRenderer clusterRenderer) {
+        this.clusterRenderer = clusterRenderer;
+    }
+
+    /**
+     * @return the size in pixels of the cells waypoints are clustered in
+     */
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Sets the size in pixels of the cells waypoints are clustered in. The
+     * clusters are rebuilt on the next paint.
+     * @param cellSize the cell size in pixels
+     */
+    public synchronized void setCellSize(int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("cellSize invalid: " + cellSize + ". The cell size must be greater than 0.");
+        }
+        this.cellSize = cellSize;
+        builtList = null;
+    }
+
+    /**
+     * Stops listening to the waypoints and drops the clusters. They are
+     * rebuilt if the painter is painted again.
+     */
+    public synchronized void dispose() {
+        release();
+        builtList = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWaypoints(Set<Waypoint> waypoints) {
+        super.setWaypoints(waypoints);
+        dispose();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWaypoints(List<Waypoint> waypoints) {
+        super.setWaypoints(waypoints);
+        dispose();
+    }
+
+    /**
+     * Adds a waypoint and updates the clusters containing it.
+     * @param waypoint the waypoint to add
+     */
+    public synchronized void addWaypoint(Waypoint waypoint) {
+        getWaypoints().add(waypoint);
+        if (builtList != null) {
+            insert(waypoint);
+            builtSize++;
+        }
+    }
+
+    /**
+     * Removes a waypoint and updates the clusters that contained it.
+     * @param waypoint the waypoint to remove
+     */
+    public synchronized void removeWaypoint(Waypoint waypoint) {
+        if (getWaypoints().remove(waypoint) && builtList != null) {
+            remove(waypoint);
+            builtSize--;
+        }
+    }
+
+    /**
+     * Finds the cluster or waypoint painted closest to a point of the map.
+     * @param map the map
+     * @param point the point in the coordinates of the map component
+     * @param radius the maximum distance in pixels
+     * @return the {@link Cluster} or waypoint closest to the point, or null if
+     *         there is none within the radius
+     */
+    public synchronized Waypoint getWaypointAt(T map, Point point, int radius) {
+        int zoom = prepare(map);
+        Rectangle viewportBounds = map.getViewportBounds();
+        Rectangle area = new Rectangle(viewportBounds.x + point.x - radius, viewportBounds.y + point.y - radius,
+                2 * radius + 1, 2 * radius + 1);
+        find(zoom, area);
+
+        Waypoint closest = null;
+        double closestDistance = (double) radius * radius;
+        double width = getMapWidth(zoom);
+        double height = getMapHeight(zoom);
+        for (int i = 0; i < found.size(); i++) {
+            Node node = found.get(i);
+            double dx = node.getX() * width + foundCopies[i] * width - (viewportBounds.x + point.x);
+            double dy = node.getY() * height - (viewportBounds.y + point.y);
+            double distance = dx * dx + dy * dy;
+            if (distance <= closestDistance) {
+                closestDistance = distance;
+                closest = toWaypoint(node, zoom);
+            }
+        }
+        found.clear();
+
+        return closest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void doPaint(Graphics2D g, T map, int width, int height) {
+        if (getRenderer() == null || clusterRenderer == null) {
+            return;
+        }
+
+        int zoom = prepare(map);
+        Rectangle viewportBounds = map.getViewportBounds();
+        find(zoom, viewportBounds);
+
+        double mapWidth = getMapWidth(zoom);
+        double mapHeight = getMapHeight(zoom);
+        for (int i = 0; i < found.size(); i++) {
+            Node node = found.get(i);
+            int x = (int) (node.getX() * mapWidth + foundCopies[i] * mapWidth - viewportBounds.getX());
+            int y = (int) (node.getY() * mapHeight - viewportBounds.getY());
+            g.translate(x, y);
+            if (node.waypoint != null) {
+                paintWaypoint(node.waypoint, map, g);
+            } else {
+                clusterRenderer.paintWaypoint(g, map, toWaypoint(node, zoom));
+            }
+            g.translate(-x, -y);
+        }
+        found.clear();
+    }
+
+    /**
+     * Rebuilds the hierarchy if necessary.
+     * @return the zoom level of the map, limited to the zoom levels of the factory
+     */
+    private int prepare(T map) {
+        TileFactory mapFactory = map.getTileFactory();
+        List<Waypoint> list = getWaypoints();
+        if (list != builtList || list.size() != builtSize || mapFactory != factory) {
+            build(mapFactory, list);
+        }
+
+        return Math.min(Math.max(map.getZoom(), minZoom), maxZoom);
+    }
+
+    private void build(TileFactory factory, List<Waypoint> list) {
+        release();
+        TileFactoryInfo info = factory.getInfo();
+        this.factory = factory;
+        minZoom = info.getMinimumZoomLevel();
+        maxZoom = info.getMaximumZoomLevel();
+        mapWidth = getMapWidth(minZoom);
+        mapHeight = getMapHeight(minZoom);
+        cellWidths = new double[maxZoom + 1];
+        cellHeights = new double[maxZoom + 1];
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            cellWidths[zoom] = cellSize / getMapWidth(zoom);
+            cellHeights[zoom] = cellSize / getMapHeight(zoom);
+        }
+
+        builtList = list;
+        builtSize = list.size();
+        for (Waypoint waypoint : list) {
+            insert(waypoint);
+        }
+    }
+
+    private void release() {
+        for (Waypoint waypoint : leaves.keySet()) {
+            waypoint.removePropertyChangeListener("position", positionListener);
+        }
+        roots.clear();
+        leaves.clear();
+    }
+
+    private double getMapWidth(int zoom) {
+        return (double) factory.getMapSize(zoom).width * factory.getTileSize(zoom);
+    }
+
+    private double getMapHeight(int zoom) {
+        return (double) factory.getMapSize(zoom).height * factory.getTileSize(zoom);
+    }
+
+    private long cell(double x, double y, int zoom) {
+        long column = (long) Math.floor(x / cellWidths[zoom]);
+        long row = (long) Math.floor(y / cellHeights[zoom]);
+        return column << 32 | (row & 0xFFFFFFFFL);
+    }
+
+    private void insert(Waypoint waypoint) {
+        Node leaf = leaves.get(waypoint);
+        if (leaf != null) {
+            // the waypoint is in the list more than once, it is clustered once
+            leaf.copies++;
+            return;
+        }
+
+        waypoint.addPropertyChangeListener("position", positionListener);
+        leaf = createLeaf(waypoint);
+        leaves.put(waypoint, leaf);
+        attach(leaf);
+    }
+
+    private void remove(Waypoint waypoint) {
+        Node leaf = leaves.get(waypoint);
+        if (leaf == null || --leaf.copies > 0) {
+            return;
+        }
+
+        waypoint.removePropertyChangeListener("position", positionListener);
+        leaves.remove(waypoint);
+        detach(leaf);
+    }
+
+    private Node createLeaf(Waypoint waypoint) {
+        GeoPosition position = waypoint.getPosition();
+        if (position == null) {
+            // counted, but never painted
+            return new Node(waypoint, Double.NaN, Double.NaN);
+        }
+
+        Point2D point = factory.geoToPixel(position, minZoom);
+        return new Node(waypoint, point.getX() / mapWidth, point.getY() / mapHeight);
+    }
+
+    /**
+     * Adds a leaf to the hierarchy.
+     */
+    private void attach(Node leaf) {
+        if (Double.isNaN(leaf.sumX)) {
+            return;
+        }
+
+        long key = cell(leaf.sumX, leaf.sumY, maxZoom);
+        Node root = roots.get(key);
+        if (root == null) {
+            roots.put(key, leaf);
+        } else if (root.waypoint != null) {
+            Node cluster = new Node(maxZoom, key);
+            roots.put(key, cluster);
+            add(cluster, root);
+            add(cluster, leaf);
+        } else {
+            add(root, leaf);
+        }
+    }
+
+    /**
+     * Adds a waypoint to a cluster and the clusters below it.
+     */
+    private void add(Node cluster, Node leaf) {
+        cluster.count++;
+        cluster.sumX += leaf.sumX;
+        cluster.sumY += leaf.sumY;
+        cluster.view = null;
+        if (cluster.zoom == minZoom) {
+            cluster.addChild(leaf);
+            return;
+        }
+
+        int zoom = cluster.zoom - 1;
+        long key = cell(leaf.sumX, leaf.sumY, zoom);
+        for (int i = 0; i < cluster.children.size(); i++) {
+            Node child = cluster.children.get(i);
+            if (child.waypoint == null ? child.cell != key : cell(child.sumX, child.sumY, zoom) != key) {
+                continue;
+            }
+
+            if (child.waypoint != null) {
+                // the cell had a single waypoint so far
+                Node split = new Node(zoom, key);
+                cluster.children.set(i, split);
+                split.parent = cluster;
+                add(split, child);
+                add(split, leaf);
+            } else {
+                add(child, leaf);
+            }
+            return;
+        }
+
+        cluster.addChild(leaf);
+    }
+
+    /**
+     * Removes a leaf from the hierarchy.
+     */
+    private void detach(Node leaf) {
+        if (Double.isNaN(leaf.sumX)) {
+            return;
+        }
+
+        Node parent = leaf.parent;
+        if (parent == null) {
+            roots.remove(cell(leaf.sumX, leaf.sumY, maxZoom));
+            return;
+        }
+        parent.children.remove(leaf);
+
+        // the topmost cluster left with a single waypoint is replaced by that waypoint
+        Node single = null;
+        for (Node cluster = parent; cluster != null; cluster = cluster.parent) {
+            cluster.count--;
+            cluster.sumX -= leaf.sumX;
+            cluster.sumY -= leaf.sumY;
+            cluster.view = null;
+            if (cluster.count == 1) {
+                single = cluster;
+            }
+        }
+
+        if (single != null) {
+            Node remaining = single;
+            while (remaining.waypoint == null) {
+                remaining = remaining.children.get(0);
+            }
+
+            remaining.parent = single.parent;
+            if (single.parent == null) {
+                roots.put(single.cell, remaining);
+            } else {
+                List<Node> siblings = single.parent.children;
+                siblings.set(siblings.indexOf(single), remaining);
+            }
+        }
+    }
+
+    private synchronized void positionChanged(Waypoint waypoint) {
+        Node leaf = builtList != null ? leaves.get(waypoint) : null;
+        if (leaf != null) {
+            detach(leaf);
+            Node moved = createLeaf(waypoint);
+            moved.copies = leaf.copies;
+            leaves.put(waypoint, moved);
+            attach(moved);
+        }
+    }
+
+    /**
+     * Collects the clusters of the given zoom level and the single waypoints
+     * inside the given area of the map and its wrapped copies.
+     */
+    private void find(int zoom, Rectangle2D area) {
+        found.clear();
+        double width = getMapWidth(zoom);
+        double height = getMapHeight(zoom);
+        int firstCopy = (int) Math.floor(area.getX() / width);
+        int lastCopy = (int) Math.floor(area.getMaxX() / width);
+        for (int copy = firstCopy; copy <= lastCopy; copy++) {
+            double left = (area.getX() - copy * width) / width;
+            double right = (area.getMaxX() - copy * width) / width;
+            double top = area.getY() / height;
+            double bottom = area.getMaxY() / height;
+            for (Node root : roots.values()) {
+                find(root, zoom, copy, left, top, right, bottom);
+            }
+        }
+    }
+
+    private void find(Node node, int zoom, int copy, double left, double top, double right, double bottom) {
+        if (node.waypoint != null || node.zoom == zoom) {
+            double x = node.getX();
+            double y = node.getY();
+            if (x >= left && x < right && y >= top && y < bottom) {
+                if (found.size() == foundCopies.length) {
+                    foundCopies = Arrays.copyOf(foundCopies, found.size() * 2);
+                }
+                foundCopies[found.size()] = copy;
+                found.add(node);
+            }
+            return;
+        }
+
+        // all waypoints of a cluster lie inside its cell
+        double cellLeft = (node.cell >> 32) * cellWidths[node.zoom];
+        double cellTop = (int) node.cell * cellHeights[node.zoom];
+        if (cellLeft >= right || cellLeft + cellWidths[node.zoom] <= left
+                || cellTop >= bottom || cellTop + cellHeights[node.zoom] <= top) {
+            return;
+        }
+
+        for (Node child : node.children) {
+            find(child, zoom, copy, left, top, right, bottom);
+        }
+    }
+
+    private Waypoint toWaypoint(Node node, int zoom) {
+        if (node.waypoint != null) {
+            return node.waypoint;
+        }
+        if (node.view == null) {
+            GeoPosition position = factory.pixelToGeo(new Point2D.Double(node.getX() * getMapWidth(zoom),
+                    node.getY() * getMapHeight(zoom)), zoom);
+            node.view = new Cluster(position, node);
+        }
+        return node.view;
+    }
+
+    private static final class PositionListener implements PropertyChangeListener {
+        private final WeakReference<ClusteringWaypointPainter<?>> painter;
+
+        PositionListener(ClusteringWaypointPainter<?> painter) {
+            this.painter = new WeakReference<ClusteringWaypointPainter<?>>(painter);
+        }
+
+        public void propertyChange(PropertyChangeEvent evt) {
+            ClusteringWaypointPainter<?> painter = this.painter.get();
+            if (painter == null) {
+                // the painter has been collected
+                ((Waypoint) evt.getSource()).removePropertyChangeListener("position", this);
+                return;
+            }
+            painter.positionChanged((Waypoint) evt.getSource());
+        }
+    }
+
+    /**
+     * A cluster of waypoints, positioned at their center. Passed to the cluster
+     * renderer and returned by hit-testing.
+     */
+    public static class Cluster extends Waypoint {
+        private final Node node;
+
+        Cluster(GeoPosition position, Node node) {
+            super(position);
+            this.node = node;
+        }
+
+        /**
+         * @return the number of waypoints in this cluster
+         */
+        public int getWaypointCount() {
+            return node.count;
+        }
+
+        /**
+         * @return the waypoints in this cluster
+         */
+        public List<Waypoint> getWaypoints() {
+            List<Waypoint> waypoints = new ArrayList<Waypoint>(node.count);
+            collect(node, waypoints);
+            return waypoints;
+        }
+
+        private static void collect(Node node, Collection<Waypoint> waypoints) {
+            if (node.waypoint != null) {
+                waypoints.add(node.waypoint);
+                return;
+            }
+            for (Node child : node.children) {
+                collect(child, waypoints);
+            }
+        }
+    }
+
+    /**
+     * A cluster, or a waypoint alone in its cell. Positions are relative to the
+     * map size, so they are the same at all zoom levels.
+     */
+    private static final class Node {
+        final Waypoint waypoint;
+        final int zoom;
+        final long cell;
+        Node parent;
+        final List<Node> children;
+        int count;
+        // the number of times the waypoint of a leaf is in the waypoint list
+        int copies;
+        // the position of a waypoint, or the sum of the positions of the waypoints of a cluster
+        double sumX;
+        double sumY;
+        Cluster view;
+
+        Node(Waypoint waypoint, double x, double y) {
+            this.waypoint = waypoint;
+            this.zoom = -1;
+            this.cell = 0;
+            this.children = null;
+            this.count = 1;
+            this.copies = 1;
+            this.sumX = x;
+            this.sumY = y;
+        }
+
+        Node(int zoom, long cell) {
+            this.waypoint = null;
+            this.zoom = zoom;
+            this.cell = cell;
+            this.children = new ArrayList<Node>(4);
+        }
+
+        void addChild(Node child) {
+            children.add(child);
+            child.parent = this;
+        }
+
+        double getX() {
+            return sumX / count;
+        }
+
+        double getY() {
+            return sumY / count;
+        }
+    }
+
+    /**
+     * Paints a cluster as a circle showing the number of its waypoints.
+     */
+    private static final class DefaultClusterRenderer implements WaypointRenderer {
+        private static final Color FILL = new Color(255, 140, 0, 200);
+        private static final BasicStroke STROKE = new BasicStroke(2f);
+
+        public boolean paintWaypoint(Graphics2D g, JXMapViewer map, Waypoint waypoint) {
+            if (!(waypoint instanceof Cluster)) {
+                return false;
+            }
+
+            String label = String.valueOf(((Cluster) waypoint).getWaypointCount());
+            FontMetrics metrics = g.getFontMetrics();
+            int radius = Math.max(10, metrics.stringWidth(label) / 2 + 6);
+            g.setColor(FILL);
+            g.fillOval(-radius, -radius, 2 * radius, 2 * radius);
+            g.setColor(Color.WHITE);
+            g.setStroke(STROKE);
+            g.drawOval(-radius, -radius, 2 * radius, 2 * radius);
+            g.drawString(label, -metrics.stringWidth(label) / 2, (metrics.getAscent() - metrics.getDescent()) / 2);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A <code>TileCache</code> that can be used concurrently by many tile loading
+ * threads and the event dispatch thread. Both the decoded images and the
+ * compressed bytes are kept in tiers that are split into independently locked
+ * segments. Each segment maintains its entries in access order so that a cache
+ * hit and an eviction are O(1) operations. Entries are evicted by weight, i.e.
+ * the number of bytes they occupy, rather than by count. Which entries are
+ * evicted is decided by a {@link TileEvictionPolicy}, by default the least
+ * recently used ones.
+ * <p>
+ * Compressed tiles can be kept outside of the Java heap by installing an
+ * {@link OffHeapTileStore}.
+ * <p>
+ * Install it on a factory using {@link AbstractTileFactory#setTileCache(TileCache)}.
+ */
+public class ConcurrentTileCache extends TileCache {
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	private final Tier<BufferedImage> images;
+	private final Tier<byte[]> bytes;
+	private volatile OffHeapTileStore offHeapStore;
+
+	/**
+	 * Creates a new cache holding up to 50 MB of decoded images and 50 MB of
+	 * compressed tiles using the least recently used eviction policy.
+	 */
+	public ConcurrentTileCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_SIZE, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Creates a new cache using the least recently used eviction policy.
+	 *
+	 * @param maxImageSize
+	 *            the maximum number of bytes occupied by decoded images
+	 * @param maxCompressedSize
+	 *            the maximum number of bytes occupied by compressed tiles
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrently accessing threads. This
+	 *            determines the number of segments of each tier.
+	 */
+	public ConcurrentTileCache(long maxImageSize, long maxCompressedSize, int concurrencyLevel) {
+		this(maxImageSize, maxCompressedSize, concurrencyLevel, LRU);
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxImageSize
+	 *            the maximum number of bytes occupied by decoded images
+	 * @param maxCompressedSize
+	 *            the maximum number of bytes occupied by compressed tiles
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrently accessing threads. This
+	 *            determines the number of segments of each tier.
+	 * @param policyFactory
+	 *            creates the eviction policy for each segment of both tiers
+	 */
+	public ConcurrentTileCache(long maxImageSize, long maxCompressedSize, int concurrencyLevel, TileEvictionPolicy.Factory policyFactory) {
+		if (concurrencyLevel <= 0) {
+			throw new IllegalArgumentException("concurrencyLevel invalid: " + concurrencyLevel + ". The concurrency level must be greater than 0.");
+		}
+
+		images = new Tier<BufferedImage>(concurrencyLevel, policyFactory);
+		bytes = new Tier<byte[]>(concurrencyLevel, policyFactory);
+		setMaxImageSize(maxImageSize);
+		setMaxCompressedSize(maxCompressedSize);
+	}
+
+	@Override
+	public void setMaxImageSize(long maxImageSize) {
+		super.setMaxImageSize(maxImageSize);
+		recordImageEvictions(images.setMaxWeight(getEffectiveMaxImageSize()));
+	}
+
+	@Override
+	public void setMaxCompressedSize(long maxCompressedSize) {
+		super.setMaxCompressedSize(maxCompressedSize);
+		recordCompressedEvictions(bytes.setMaxWeight(getEffectiveMaxCompressedSize()));
+	}
+
+	@Override
+	void setMemoryPressure(double imageFraction, double compressedFraction) {
+		super.setMemoryPressure(imageFraction, compressedFraction);
+		recordImageEvictions(images.setMaxWeight(getEffectiveMaxImageSize()));
+		recordCompressedEvictions(bytes.setMaxWeight(getEffectiveMaxCompressedSize()));
+	}
+
+	/**
+	 * Gets the off-heap store used for compressed tiles.
+	 * @return the off-heap store, or null if compressed tiles are kept on the heap
+	 */
+	public OffHeapTileStore getOffHeapTileStore() {
+		return offHeapStore;
+	}
+
+	/**
+	 * Sets an off-heap store for compressed tiles. While a store is installed,
+	 * compressed tiles are no longer kept on the heap and are decoded straight from
+	 * their off-heap slab without being copied to the heap. The budget of the store
+	 * is fixed when it is created; the maximum compressed size of this cache only
+	 * applies to the heap tier.
+	 * @param offHeapStore the off-heap store, or null to keep compressed tiles on the heap
+	 */
+	public void setOffHeapTileStore(OffHeapTileStore offHeapStore) {
+		this.offHeapStore = offHeapStore;
+		bytes.clear();
+	}
+
+	@Override
+	public void put(URI uri, byte[] bimg, BufferedImage img) {
+		OffHeapTileStore store = offHeapStore;
+		if (store != null) {
+			recordCompressedEvictions(store.put(uri, bimg));
+		} else {
+			recordCompressedEvictions(bytes.put(uri, bimg, bimg.length));
+		}
+		if (img != null) {
+			recordImageEvictions(images.put(uri, img, getMemorySize(img)));
+		}
+	}
+
+	@Override
+	public BufferedImage get(final URI uri) throws IOException {
+		TileMetrics metrics = getMetrics();
+		BufferedImage img = images.get(uri);
+		if (img != null) {
+			if (metrics != null) {
+				metrics.recordImageHit();
+			}
+			return img;
+		}
+
+		if (metrics != null) {
+			metrics.recordImageMiss();
+		}
+
+		final OffHeapTileStore store = offHeapStore;
+		final byte[] bimg = store == null ? bytes.get(uri) : null;
+		boolean found = store != null ? store.contains(uri) : bimg != null;
+		if (metrics != null) {
+			if (found) {
+				metrics.recordCompressedHit();
+			} else {
+				metrics.recordCompressedMiss();
+			}
+		}
+		if (!found) {
+			return null;
+		}
+
+		// decode outside of all segment locks, concurrent requests share the result
+		img = decode(uri, new Callable<BufferedImage>() {
+			public BufferedImage call() throws IOException {
+				BufferedImage img = store != null ? store.readImage(uri) : TileDecoder.decode(bimg);
+				if (img != null) {
+					recordImageEvictions(images.put(uri, img, getMemorySize(img)));
+				}
+				return img;
+			}
+		});
+		if (img == null || images.pin(uri, img)) {
+			return img;
+		}
+		// the shared image has been evicted and may be recycled already
+		return store != null ? store.readImage(uri) : TileDecoder.decode(bimg);
+	}
+
+	@Override
+	public void needMoreMemory() {
+		images.clear();
+	}
+
+	@Override
+	public void clear() {
+		images.clear();
+		bytes.clear();
+
+		OffHeapTileStore store = offHeapStore;
+		if (store != null) {
+			store.clear();
+		}
+	}
+
+	/**
+	 * @return the number of bytes currently occupied by decoded images
+	 */
+	public long getImageSize() {
+		return images.weight();
+	}
+
+	/**
+	 * @return the number of bytes currently occupied by compressed tiles
+	 */
+	public long getCompressedSize() {
+		OffHeapTileStore store = offHeapStore;
+		return store != null ? store.getSize() : bytes.weight();
+	}
+
+	private void recordImageEvictions(int count) {
+		TileMetrics metrics = getMetrics();
+		if (metrics != null) {
+			metrics.recordImageEvictions(count);
+		}
+	}
+
+	private void recordCompressedEvictions(int count) {
+		TileMetrics metrics = getMetrics();
+		if (metrics != null) {
+			metrics.recordCompressedEvictions(count);
+		}
+	}
+
+	/**
+	 * A size bounded map split into segments. The maximum weight is evenly
+	 * distributed over the segments.
+	 */
+	private static final class Tier<V> {
+		private final Segment<V>[] segments;
+		private final int mask;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Tier(int concurrencyLevel, TileEvictionPolicy.Factory policyFactory) {
+			int count = 1;
+			while (count < concurrencyLevel) {
+				count <<= 1;
+			}
+
+			segments = new Segment[count];
+			mask = count - 1;
+			for (int i = 0; i < count; i++) {
+				segments[i] = new Segment<V>(policyFactory.createPolicy());
+			}
+		}
+
+		V get(URI uri) {
+			return segmentFor(uri).get(uri);
+		}
+
+		int put(URI uri, V value, long weight) {
+			return segmentFor(uri).put(uri, value, weight);
+		}
+
+		boolean pin(URI uri, V value) {
+			return segmentFor(uri).pin(uri, value);
+		}
+
+		int setMaxWeight(long maxWeight) {
+			int evicted = 0;
+			for (Segment<V> segment : segments) {
+				evicted += segment.setMaxWeight(maxWeight / segments.length);
+			}
+			return evicted;
+		}
+
+		void clear() {
+			for (Segment<V> segment : segments) {
+				segment.clear();
+			}
+		}
+
+		long weight() {
+			long weight = 0;
+			for (Segment<V> segment : segments) {
+				weight += segment.weight;
+			}
+
+			return weight;
+		}
+
+		private Segment<V> segmentFor(URI uri) {
+			// spread the hash so that segments are selected by the high bits as well
+			int h = uri.hashCode();
+			h ^= (h >>> 16);
+			return segments[h & mask];
+		}
+	}
+
+	private static final class Segment<V> {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final HashMap<URI, Entry<V>> map = new HashMap<URI, Entry<V>>();
+		private final TileEvictionPolicy policy;
+		private long maxWeight;
+		private volatile long weight;
+
+		Segment(TileEvictionPolicy policy) {
+			this.policy = policy;
+		}
+
+		V get(URI uri) {
+			lock.lock();
+			try {
+				policy.onAccess(uri);
+				Entry<V> entry = map.get(uri);
+				if (entry == null) {
+					return null;
+				}
+				// an image is not recycled before the caller is done with it
+				pin(entry.value);
+				return entry.value;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Pins the value if it is still cached under the given URI.
+		 */
+		boolean pin(URI uri, V value) {
+			lock.lock();
+			try {
+				Entry<V> entry = map.get(uri);
+				if (entry == null || entry.value != value) {
+					return false;
+				}
+				pin(entry.value);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int put(URI uri, V value, long entryWeight) {
+			lock.lock();
+			try {
+				Entry<V> old = map.put(uri, new Entry<V>(value, entryWeight));
+				long total = weight + entryWeight;
+				if (old != null) {
+					total -= old.weight;
+					policy.onRemove(uri);
+					recycle(old.value);
+				}
+
+				policy.onInsert(uri, entryWeight);
+				weight = total;
+				return evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int setMaxWeight(long maxWeight) {
+			lock.lock();
+			try {
+				this.maxWeight = maxWeight;
+				policy.setMaximumWeight(maxWeight);
+				return evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void clear() {
+			lock.lock();
+			try {
+				map.clear();
+				policy.clear();
+				weight = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private int evict() {
+			int evicted = 0;
+			long total = weight;
+			while (total > maxWeight) {
+				URI victim = policy.nextVictim();
+				if (victim == null) {
+					break;
+				}
+
+				Entry<V> entry = map.remove(victim);
+				policy.onRemove(victim);
+				if (entry != null) {
+					total -= entry.weight;
+					recycle(entry.value);
+					evicted++;
+				}
+			}
+
+			weight = total;
+			return evicted;
+		}
+
+		private static void pin(Object value) {
+			if (value instanceof BufferedImage) {
+				TileRasterPool.getInstance().pin((BufferedImage) value);
+			}
+		}
+
+		private static void recycle(Object value) {
+			if (value instanceof BufferedImage) {
+				TileRasterPool.getInstance().release((BufferedImage) value);
+			}
+		}
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,598 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent store for compressed tiles that is used as a second level below
+ * the in-memory {@link TileCache}. Tiles survive restarts of the application so
+ * that they do not have to be downloaded again.
+ * <p>
+ * Each tile is stored in its own file named after the SHA-256 hash of the tile
+ * URI. Files are written to a temporary file first and then atomically moved to
+ * their final location, so a crash never leaves a partially written tile behind.
+ * The store keeps an append-only journal of its content in access order.
+ * Accesses are written in batches, flushed every few seconds, so reading tiles
+ * does not cause a synchronous write each; a crash only loses the most recent
+ * accesses. On startup the journal is replayed. Only if the store has not been
+ * closed properly, the tile files the journal does not know, e.g. tiles moved
+ * into place just before a crash, are looked for and deleted. When the
+ * total size of all tiles exceeds the configured maximum, the least recently
+ * used tiles are removed by a background thread.
+ * <p>
+ * Along with each tile, its HTTP caching metadata ({@link TileFreshness}) can be
+ * stored, so that stale tiles can be revalidated after a restart.
+ * <p>
+ * Install it on a factory using {@link AbstractTileFactory#setDiskTileStore(DiskTileStore)}.
+ */
+public class DiskTileStore {
+	private static final Logger LOG = Logger.getLogger(DiskTileStore.class.getName());
+
+	private static final String JOURNAL_FILE = "journal";
+	// exists while the store is closed, if it has been closed properly
+	private static final String CLEAN_SHUTDOWN_FILE = "journal.clean";
+	private static final String JOURNAL_HEADER = "swingx-ws-tile-store 2";
+	private static final String JOURNAL_HEADER_V1 = "swingx-ws-tile-store 1";
+	private static final String PUT = "P";
+	private static final String REMOVE = "R";
+	private static final String ACCESS = "A";
+	private static final String META = "M";
+	private static final String NONE = "-";
+	private static final int KEY_LENGTH = 64;
+	private static final long JOURNAL_FLUSH_DELAY = 5000;
+
+	private final File directory;
+	private final File journalFile;
+	private final File cleanShutdownFile;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	// sweeps the store and flushes batched journal records
+	private final ScheduledExecutorService sweeper;
+
+	private volatile long maxSize;
+	private long size;
+	private Writer journal;
+	private int journalRecords;
+
+	/**
+	 * Opens or creates a tile store in the given directory.
+	 * @param directory the directory to store the tiles in
+	 * @param maxSize the maximum number of bytes occupied by all tiles
+	 * @throws IOException if the directory or its journal cannot be accessed
+	 */
+	public DiskTileStore(File directory, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize invalid: " + maxSize + ". The maximum size must be greater than 0.");
+		}
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+		journalFile = new File(directory, JOURNAL_FILE);
+		cleanShutdownFile = new File(directory, CLEAN_SHUTDOWN_FILE);
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create tile store directory " + directory + ".");
+		}
+
+		readJournal();
+		if (cleanShutdownFile.exists()) {
+			// until the store is closed again, a crash may leave unknown files behind
+			Files.delete(cleanShutdownFile.toPath());
+		} else {
+			removeUnknownFiles();
+		}
+		rewriteJournal();
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tile-store-sweeper");
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		if (size > maxSize) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * Returns the compressed tile stored for the given URI.
+	 * @param uri the tile URI
+	 * @return the bytes of the tile, or null if the tile is not in the store
+	 * @throws IOException if the tile cannot be read
+	 */
+	public byte[] get(URI uri) throws IOException {
+		String key = key(uri);
+		synchronized (this) {
+			if (entries.get(key) == null) {
+				return null;
+			}
+			appendJournal(ACCESS, key, null);
+		}
+
+		try {
+			return Files.readAllBytes(fileFor(key).toPath());
+		} catch (NoSuchFileException e) {
+			// the file has been removed behind our back
+			removeEntry(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the caching metadata stored with the tile for the given URI.
+	 * @param uri the tile URI
+	 * @return the metadata, or null if the tile or its metadata is not in the store
+	 */
+	public synchronized TileFreshness getFreshness(URI uri) {
+		Entry entry = entries.get(key(uri));
+		return entry != null ? entry.freshness : null;
+	}
+
+	/**
+	 * Replaces the caching metadata of a stored tile, e.g. after the server
+	 * confirmed that the tile has not been modified.
+	 * @param uri the tile URI
+	 * @param freshness the new metadata
+	 */
+	public synchronized void setFreshness(URI uri, TileFreshness freshness) {
+		String key = key(uri);
+		Entry entry = entries.get(key);
+		if (entry != null && freshness != null) {
+			entry.freshness = freshness;
+			appendJournal(META, key, encode(freshness));
+		}
+	}
+
+	/**
+	 * Stores the compressed tile for the given URI, replacing any previously
+	 * stored tile.
+	 * @param uri the tile URI
+	 * @param bytes the bytes of the tile
+	 * @throws IOException if the tile cannot be written
+	 */
+	public void put(URI uri, byte[] bytes) throws IOException {
+		put(uri, bytes, null);
+	}
+
+	/**
+	 * Stores the compressed tile for the given URI along with its caching
+	 * metadata, replacing any previously stored tile.
+	 * @param uri the tile URI
+	 * @param bytes the bytes of the tile
+	 * @param freshness the caching metadata of the tile, may be null
+	 * @throws IOException if the tile cannot be written
+	 */
+	public void put(URI uri, byte[] bytes, TileFreshness freshness) throws IOException {
+		String key = key(uri);
+		File file = fileFor(key);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create directory " + parent + ".");
+		}
+
+		Path tmp = Files.createTempFile(parent.toPath(), key, ".tmp");
+		try {
+			Files.write(tmp, bytes);
+			moveAtomically(tmp, file.toPath());
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		synchronized (this) {
+			Entry old = entries.put(key, new Entry(bytes.length, freshness));
+			size += bytes.length - (old != null ? old.length : 0);
+			appendJournal(PUT, key, String.valueOf(bytes.length));
+			if (freshness != null) {
+				appendJournal(META, key, encode(freshness));
+			}
+		}
+
+		if (getSize() > maxSize) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * Checks whether a tile is stored for the given URI without reading it.
+	 * @param uri the tile URI
+	 * @return true if the store contains the tile
+	 */
+	public synchronized boolean contains(URI uri) {
+		return entries.containsKey(key(uri));
+	}
+
+	/**
+	 * Removes the tile stored for the given URI.
+	 * @param uri the tile URI
+	 * @throws IOException if the tile cannot be deleted
+	 */
+	public void remove(URI uri) throws IOException {
+		String key = key(uri);
+		removeEntry(key);
+		Files.deleteIfExists(fileFor(key).toPath());
+	}
+
+	/**
+	 * @return the number of bytes currently occupied by all tiles
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of bytes occupied by all tiles
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of bytes occupied by all tiles. If the store is
+	 * larger than the new maximum, least recently used tiles are removed in the
+	 * background.
+	 * @param maxSize the maximum size in bytes
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize invalid: " + maxSize + ". The maximum size must be greater than 0.");
+		}
+
+		this.maxSize = maxSize;
+		if (getSize() > maxSize) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * @return the directory tiles are stored in
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Compacts the journal and releases all resources held by this store. The
+	 * store must not be used afterwards.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+		synchronized (this) {
+			try {
+				rewriteJournal();
+				journal.close();
+				// the next startup does not need to look for unknown files
+				Files.createFile(cleanShutdownFile.toPath());
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to close tile store journal.", e);
+			}
+		}
+	}
+
+	private void scheduleSweep() {
+		if (sweepScheduled.compareAndSet(false, true)) {
+			sweeper.execute(new Runnable() {
+				public void run() {
+					sweepScheduled.set(false);
+					sweep();
+				}
+			});
+		}
+	}
+
+	private void sweep() {
+		List<String> victims = new ArrayList<String>();
+		synchronized (this) {
+			// shrink below the maximum to avoid sweeping on every put
+			long target = maxSize - maxSize / 10;
+			Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+			while (size > target && iter.hasNext()) {
+				Map.Entry<String, Entry> eldest = iter.next();
+				size -= eldest.getValue().length;
+				victims.add(eldest.getKey());
+				iter.remove();
+			}
+
+			try {
+				rewriteJournal();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to compact tile store journal.", e);
+			}
+		}
+
+		for (String key : victims) {
+			try {
+				Files.deleteIfExists(fileFor(key).toPath());
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to delete tile " + key + ".", e);
+			}
+		}
+	}
+
+	private void scheduleJournalFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			sweeper.schedule(new Runnable() {
+				public void run() {
+					flushScheduled.set(false);
+					flushJournal();
+				}
+			}, JOURNAL_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void flushJournal() {
+		try {
+			journal.flush();
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to write tile store journal.", e);
+		}
+	}
+
+	private synchronized void removeEntry(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.length;
+			appendJournal(REMOVE, key, null);
+		}
+	}
+
+	private void readJournal() throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8));
+		try {
+			String header = reader.readLine();
+			if (!JOURNAL_HEADER.equals(header) && !JOURNAL_HEADER_V1.equals(header)) {
+				LOG.log(Level.WARNING, "Ignoring tile store journal with unknown format.");
+				return;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if (parts.length < 2) {
+					// a torn record written during a crash
+					break;
+				}
+
+				String key = parts[1];
+				if (PUT.equals(parts[0]) && parts.length == 3) {
+					long length;
+					try {
+						length = Long.parseLong(parts[2]);
+					} catch (NumberFormatException e) {
+						break;
+					}
+
+					Entry old = entries.put(key, new Entry(length, null));
+					size += length - (old != null ? old.length : 0);
+				} else if (REMOVE.equals(parts[0])) {
+					Entry old = entries.remove(key);
+					if (old != null) {
+						size -= old.length;
+					}
+				} else if (ACCESS.equals(parts[0])) {
+					entries.get(key);
+				} else if (META.equals(parts[0]) && parts.length == 5) {
+					TileFreshness freshness = decode(parts);
+					if (freshness == null) {
+						break;
+					}
+
+					Entry entry = entries.get(key);
+					if (entry != null) {
+						entry.freshness = freshness;
+					}
+				} else {
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Deletes the tile files the journal does not know: tiles moved into place
+	 * before their journal record was written, and temporary files of writes
+	 * interrupted by a crash. Only files named after a tile key are touched.
+	 * This reads every shard directory, so it only runs after an unclean shutdown.
+	 */
+	private void removeUnknownFiles() {
+		File[] dirs = directory.listFiles();
+		if (dirs == null) {
+			return;
+		}
+
+		int removed = 0;
+		for (File dir : dirs) {
+			if (dir.getName().length() != 2 || !dir.isDirectory()) {
+				continue;
+			}
+
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				String name = file.getName();
+				if (!isTileFile(dir.getName(), name) || name.length() == KEY_LENGTH && entries.containsKey(name)) {
+					continue;
+				}
+				if (file.delete()) {
+					removed++;
+				}
+			}
+		}
+
+		if (removed > 0) {
+			LOG.log(Level.INFO, "Deleted " + removed + " tile files missing from the tile store journal.");
+		}
+	}
+
+	/**
+	 * Checks whether a file name starts with a tile key, as tiles and their
+	 * temporary files do.
+	 */
+	private static boolean isTileFile(String dir, String name) {
+		if (name.length() < KEY_LENGTH || !name.startsWith(dir)) {
+			return false;
+		}
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			if (Character.digit(name.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a compacted journal holding one record per tile in access order and
+	 * atomically replaces the current journal with it.
+	 */
+	private void rewriteJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+
+		File tmp = new File(directory, JOURNAL_FILE + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+		try {
+			writer.write(JOURNAL_HEADER);
+			writer.write('\n');
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue().length + '\n');
+				if (entry.getValue().freshness != null) {
+					writer.write(META + ' ' + entry.getKey() + ' ' + encode(entry.getValue().freshness) + '\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		moveAtomically(tmp.toPath(), journalFile.toPath());
+		journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+		journalRecords = entries.size();
+	}
+
+	private void appendJournal(String op, String key, String value) {
+		try {
+			journal.write(value != null ? op + ' ' + key + ' ' + value + '\n' : op + ' ' + key + '\n');
+			if (ACCESS.equals(op)) {
+				// losing a few accesses in a crash only affects the eviction order
+				scheduleJournalFlush();
+			} else {
+				journal.flush();
+			}
+			if (++journalRecords > 2 * entries.size() + 1000) {
+				rewriteJournal();
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to write tile store journal.", e);
+		}
+	}
+
+	/**
+	 * Encodes metadata as the value of a journal record: the expiration time,
+	 * the modification time and the URL encoded entity tag.
+	 */
+	private static String encode(TileFreshness freshness) {
+		String etag = NONE;
+		if (freshness.getETag() != null) {
+			try {
+				etag = URLEncoder.encode(freshness.getETag(), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				// every Java platform is required to support UTF-8
+				throw new IllegalStateException(e);
+			}
+		}
+		return freshness.getExpires() + " " + freshness.getLastModified() + ' ' + etag;
+	}
+
+	private static TileFreshness decode(String[] parts) {
+		try {
+			String etag = NONE.equals(parts[4]) ? null : URLDecoder.decode(parts[4], "UTF-8");
+			return new TileFreshness(etag, Long.parseLong(parts[3]), Long.parseLong(parts[2]));
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private File fileFor(String key) {
+		return new File(new File(directory, key.substring(0, 2)), key);
+	}
+
+	private static final class Entry {
+		final long length;
+		TileFreshness freshness;
+
+		Entry(long length, TileFreshness freshness) {
+			this.length = length;
+			this.freshness = freshness;
+		}
+	}
+
+	private static void moveAtomically(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String key(URI uri) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder builder = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -127,7 +127,7 @@ public class GeoBounds {
 	 * @return Returns the north west position.
 	 */
 	public GeoPosition getNorthWest() {
-		return new GeoPosition(rects[0].getX(), rects[0].getMaxY());
+		return new GeoPosition(rects[0].getMaxY(), rects[0].getX());
 	}
 
 	/**
@@ -140,7 +140,7 @@ public class GeoBounds {
 		if (rects.length > 1) {
 			r = rects[1];
 		}
-		return new GeoPosition(r.getMaxX(), r.getY());
+		return new GeoPosition(r.getY(), r.getMaxX());
 	}
 	
 }
\ No newline at end of file
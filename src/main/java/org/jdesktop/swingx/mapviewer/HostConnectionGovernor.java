@@ -0,0 +1,319 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Limits the number of concurrent requests per tile host for the whole JVM.
+ * All tile factories, e.g. the main map and the mini map of a
+ * <code>JXMapKit</code> and any overlay factories, share one instance, so
+ * together they never open more connections to a host than its usage policy
+ * allows.
+ * <p>
+ * Requests exceeding the limit wait. Waiting requests are queued per client
+ * (usually a tile factory) and served round robin across the clients, so a
+ * factory with a long queue cannot starve the others. The current usage is
+ * available from this class and from the platform MBean server as
+ * <code>org.jdesktop.swingx.mapviewer:type=HostConnectionGovernor</code>.
+ */
+public final class HostConnectionGovernor implements HostConnectionGovernorMBean {
+	private static final Logger LOG = Logger.getLogger(HostConnectionGovernor.class.getName());
+	private static final HostConnectionGovernor INSTANCE = new HostConnectionGovernor();
+
+	static {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("org.jdesktop.swingx.mapviewer:type=HostConnectionGovernor");
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(INSTANCE, objectName);
+			}
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Failed to register the host connection governor.", e);
+		} catch (SecurityException e) {
+			LOG.log(Level.WARNING, "Failed to register the host connection governor.", e);
+		}
+	}
+
+	private volatile int maxConnectionsPerHost = 6;
+	private final ConcurrentHashMap<String, Integer> limits = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+	private HostConnectionGovernor() {
+	}
+
+	/**
+	 * @return the governor shared by all tile factories
+	 */
+	public static HostConnectionGovernor getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the maximum number of concurrent requests to a host without a limit of its own
+	 */
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent requests to a host without a limit
+	 * of its own. Lowering the limit does not abort running requests.
+	 * @param maxConnectionsPerHost the maximum number of connections
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost <= 0) {
+			throw new IllegalArgumentException("maxConnectionsPerHost invalid: " + maxConnectionsPerHost + ". The number of connections must be greater than 0.");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		for (Host host : hosts.values()) {
+			host.grant();
+		}
+	}
+
+	/**
+	 * @param host the host name
+	 * @return the maximum number of concurrent requests to the given host
+	 */
+	public int getMaxConnections(String host) {
+		Integer limit = limits.get(host);
+		return limit != null ? limit : maxConnectionsPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent requests to the given host,
+	 * overriding {@link #getMaxConnectionsPerHost()}.
+	 * @param host the host name
+	 * @param maxConnections the maximum number of connections, or 0 to use the default limit
+	 */
+	public void setMaxConnections(String host, int maxConnections) {
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("maxConnections invalid: " + maxConnections + ". The number of connections must not be negative.");
+		}
+		if (maxConnections == 0) {
+			limits.remove(host);
+		} else {
+			limits.put(host, maxConnections);
+		}
+		getHost(host).grant();
+	}
+
+	/**
+	 * @param host the host name
+	 * @return the number of requests currently sent to the given host
+	 */
+	public int getActiveConnections(String host) {
+		Host h = hosts.get(host);
+		return h != null ? h.getActive() : 0;
+	}
+
+	/**
+	 * @param host the host name
+	 * @return the number of requests currently waiting for a connection to the given host
+	 */
+	public int getWaitingRequests(String host) {
+		Host h = hosts.get(host);
+		return h != null ? h.getWaiting() : 0;
+	}
+
+	/**
+	 * @return the number of requests currently sent to all hosts
+	 */
+	public int getActiveConnections() {
+		int active = 0;
+		for (Host host : hosts.values()) {
+			active += host.getActive();
+		}
+		return active;
+	}
+
+	/**
+	 * @return the number of requests currently waiting for a connection
+	 */
+	public int getWaitingRequests() {
+		int waiting = 0;
+		for (Host host : hosts.values()) {
+			waiting += host.getWaiting();
+		}
+		return waiting;
+	}
+
+	/**
+	 * @return the usage of each host in the form <code>host: active/max, waiting</code>
+	 */
+	public String[] getHostUsage() {
+		List<String> usage = new ArrayList<String>();
+		for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+			String name = entry.getKey();
+			Host host = entry.getValue();
+			usage.add(name + ": " + host.getActive() + "/" + getMaxConnections(name) + ", " + host.getWaiting() + " waiting");
+		}
+		return usage.toArray(new String[usage.size()]);
+	}
+
+	/**
+	 * Waits until a request may be sent to the given host. Every successful
+	 * call must be followed by a call to {@link #release(String)}.
+	 * @param host the host name
+	 * @param client the client the request is queued for, usually the tile factory
+	 * @throws InterruptedException if the thread has been interrupted while waiting
+	 */
+	public void acquire(String host, Object client) throws InterruptedException {
+		getHost(host).acquire(client);
+	}
+
+	/**
+	 * Ends a request, letting the next waiting request through.
+	 * @param host the host name
+	 */
+	public void release(String host) {
+		getHost(host).release();
+	}
+
+	private Host getHost(String name) {
+		Host host = hosts.get(name);
+		if (host == null) {
+			Host created = new Host(name);
+			host = hosts.putIfAbsent(name, created);
+			if (host == null) {
+				host = created;
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * The connections of one host. A lock is used instead of monitors, so that
+	 * waiting virtual threads do not pin their carrier threads.
+	 */
+	private final class Host {
+		private final String name;
+		private final ReentrantLock lock = new ReentrantLock();
+		// the clients with waiting requests, in round robin order
+		private final LinkedHashMap<Object, ArrayDeque<Waiter>> queues = new LinkedHashMap<Object, ArrayDeque<Waiter>>();
+		private int active;
+		private int waiting;
+
+		Host(String name) {
+			this.name = name;
+		}
+
+		int getActive() {
+			lock.lock();
+			try {
+				return active;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int getWaiting() {
+			lock.lock();
+			try {
+				return waiting;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void acquire(Object client) throws InterruptedException {
+			lock.lock();
+			try {
+				if (waiting == 0 && active < getMaxConnections(name)) {
+					active++;
+					return;
+				}
+
+				Waiter waiter = new Waiter(lock.newCondition());
+				ArrayDeque<Waiter> queue = queues.get(client);
+				if (queue == null) {
+					queue = new ArrayDeque<Waiter>();
+					queues.put(client, queue);
+				}
+				queue.add(waiter);
+				waiting++;
+
+				try {
+					while (!waiter.granted) {
+						waiter.condition.await();
+					}
+				} catch (InterruptedException e) {
+					if (waiter.granted) {
+						// the connection has been granted in the meantime, pass it on
+						active--;
+						grantLocked();
+					} else {
+						queue.remove(waiter);
+						if (queue.isEmpty()) {
+							queues.remove(client);
+						}
+						waiting--;
+					}
+					throw e;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void release() {
+			lock.lock();
+			try {
+				active--;
+				grantLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void grant() {
+			lock.lock();
+			try {
+				grantLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void grantLocked() {
+			int max = getMaxConnections(name);
+			while (waiting > 0 && active < max) {
+				Iterator<Map.Entry<Object, ArrayDeque<Waiter>>> it = queues.entrySet().iterator();
+				Map.Entry<Object, ArrayDeque<Waiter>> next = it.next();
+				Waiter waiter = next.getValue().poll();
+				it.remove();
+				if (!next.getValue().isEmpty()) {
+					// the client goes to the end of the round
+					queues.put(next.getKey(), next.getValue());
+				}
+
+				waiter.granted = true;
+				active++;
+				waiting--;
+				waiter.condition.signal();
+			}
+		}
+	}
+
+	private static final class Waiter {
+		final Condition condition;
+		boolean granted;
+
+		Waiter(Condition condition) {
+			this.condition = condition;
+		}
+	}
+}
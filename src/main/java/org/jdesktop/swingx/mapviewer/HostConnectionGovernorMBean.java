@@ -0,0 +1,17 @@
+package org.jdesktop.swingx.mapviewer;
+
+/**
+ * The management interface of {@link HostConnectionGovernor}.
+ */
+public interface HostConnectionGovernorMBean {
+
+	public int getMaxConnectionsPerHost();
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost);
+
+	public int getActiveConnections();
+
+	public int getWaitingRequests();
+
+	public String[] getHostUsage();
+}
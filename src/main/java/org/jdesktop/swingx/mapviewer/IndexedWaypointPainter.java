@@ -0,0 +1,352 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jdesktop.swingx.JXMapViewer;
+
+/**
+ * A WaypointPainter for large numbers of waypoints. The projected pixel
+ * positions of the waypoints are cached for the last few zoom levels and
+ * indexed by a grid, so a paint only visits the waypoints inside the viewport
+ * and its wrapped copies, instead of projecting every waypoint each time.
+ * Waypoints are still painted in the order of the waypoint list.
+ * <p>
+ * The index is rebuilt when the waypoint list is replaced or its size changes.
+ * Moved waypoints are picked up through their <code>position</code> property.
+ * If waypoints of the list are replaced without changing its size, call
+ * {@link #waypointsChanged()}.
+ * <p>
+ * The position listeners only hold the painter weakly, so a dropped painter
+ * can be collected while its waypoints live on. Call {@link #dispose()} to
+ * remove the listeners from the waypoints as well.
+ */
+public class IndexedWaypointPainter<T extends JXMapViewer> extends WaypointPainter<T> {
+    private static final int CELL_SIZE = 256;
+    private static final int MAX_CACHED_ZOOMS = 3;
+
+    private List<Waypoint> indexedList;
+    private Waypoint[] indexed = new Waypoint[0];
+    private PositionListener[] listeners = new PositionListener[0];
+    private TileFactory indexedFactory;
+    private final Map<Integer, ZoomIndex> zoomIndexes = new LinkedHashMap<Integer, ZoomIndex>(MAX_CACHED_ZOOMS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ZoomIndex> eldest) {
+            return size() > MAX_CACHED_ZOOMS;
+        }
+    };
+
+    // waypoints moved since the index was built, they are projected on each paint
+    private final BitSet moved = new BitSet();
+    private int[] movedList = new int[16];
+    private int movedCount;
+
+    // the waypoints to paint, packed as index and copy of the viewport
+    private long[] visible = new long[256];
+    private int visibleCount;
+
+    /**
+     * Creates a new instance of IndexedWaypointPainter
+     */
+    public IndexedWaypointPainter() {
+    }
+
+    /**
+     * Discards the index, e.g. after waypoints of the list have been replaced.
+     * It is rebuilt on the next paint.
+     */
+    public synchronized void waypointsChanged() {
+        indexedList = null;
+    }
+
+    /**
+     * Stops listening to the waypoints and drops the index. The index is
+     * rebuilt if the painter is painted again.
+     */
+    public synchronized void dispose() {
+        release();
+        indexedList = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWaypoints(Set<Waypoint> waypoints) {
+        super.setWaypoints(waypoints);
+        dispose();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setWaypoints(List<Waypoint> waypoints) {
+        super.setWaypoints(waypoints);
+        dispose();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void doPaint(Graphics2D g, T map, int width, int height) {
+        if (getRenderer() == null) {
+            return;
+        }
+
+        int zoom = map.getZoom();
+        TileFactory factory = map.getTileFactory();
+        Rectangle viewportBounds = map.getViewportBounds();
+        List<Waypoint> list = getWaypoints();
+        if (list != indexedList || list.size() != indexed.length || factory != indexedFactory
+                || movedCount > Math.max(64, indexed.length / 8)) {
+            rebuild(list, factory);
+        }
+
+        ZoomIndex index = zoomIndexes.get(zoom);
+        if (index == null) {
+            index = new ZoomIndex(factory, zoom, indexed);
+            zoomIndexes.put(zoom, index);
+        }
+
+        visibleCount = 0;
+        index.query(this, viewportBounds);
+        for (int i = 0; i < movedCount; i++) {
+            int w = movedList[i];
+            GeoPosition position = indexed[w].getPosition();
+            if (position != null) {
+                Point2D point = factory.geoToPixel(position, zoom);
+                addIfVisible(w, point.getX(), point.getY(), index.mapWidth, viewportBounds);
+            }
+        }
+
+        // paint in list order, as the painter without index does
+        Arrays.sort(visible, 0, visibleCount);
+        for (int i = 0; i < visibleCount; i++) {
+            int w = (int) (visible[i] >>> 16);
+            int copy = (int) (visible[i] & 0xFFFF) - Short.MAX_VALUE;
+            double px = index.x[w];
+            double py = index.y[w];
+            if (moved.get(w)) {
+                Point2D point = factory.geoToPixel(indexed[w].getPosition(), zoom);
+                px = point.getX();
+                py = point.getY();
+            }
+
+            int x = (int) (px + copy * index.mapWidth - viewportBounds.getX());
+            int y = (int) (py - viewportBounds.getY());
+            g.translate(x, y);
+            paintWaypoint(indexed[w], map, g);
+            g.translate(-x, -y);
+        }
+    }
+
+    private void rebuild(List<Waypoint> list, TileFactory factory) {
+        release();
+        indexed = list.toArray(new Waypoint[list.size()]);
+        listeners = new PositionListener[indexed.length];
+        for (int i = 0; i < indexed.length; i++) {
+            listeners[i] = new PositionListener(this, i);
+            indexed[i].addPropertyChangeListener("position", listeners[i]);
+        }
+
+        indexedList = list;
+        indexedFactory = factory;
+    }
+
+    private void release() {
+        for (int i = 0; i < indexed.length; i++) {
+            indexed[i].removePropertyChangeListener("position", listeners[i]);
+        }
+
+        indexed = new Waypoint[0];
+        listeners = new PositionListener[0];
+        indexedFactory = null;
+        zoomIndexes.clear();
+        moved.clear();
+        movedCount = 0;
+    }
+
+    private synchronized void positionChanged(int index) {
+        if (!moved.get(index)) {
+            moved.set(index);
+            if (movedCount == movedList.length) {
+                movedList = Arrays.copyOf(movedList, movedCount * 2);
+            }
+            movedList[movedCount++] = index;
+        }
+    }
+
+    /**
+     * Adds a waypoint to the visible ones for each copy of the viewport containing it.
+     */
+    private void addIfVisible(int index, double px, double py, double mapWidth, Rectangle viewportBounds) {
+        if (py < viewportBounds.getY() || py >= viewportBounds.getMaxY()) {
+            return;
+        }
+
+        int firstCopy = (int) Math.floor(viewportBounds.getX() / mapWidth);
+        int lastCopy = (int) Math.floor(viewportBounds.getMaxX() / mapWidth);
+        for (int copy = firstCopy; copy <= lastCopy; copy++) {
+            double x = px + copy * mapWidth;
+            if (x >= viewportBounds.getX() && x < viewportBounds.getMaxX()) {
+                addVisible(index, copy);
+            }
+        }
+    }
+
+    private void addVisible(int index, int copy) {
+        if (visibleCount == visible.length) {
+            visible = Arrays.copyOf(visible, visibleCount * 2);
+        }
+        visible[visibleCount++] = (long) index << 16 | (copy + Short.MAX_VALUE);
+    }
+
+    private static final class PositionListener implements PropertyChangeListener {
+        private final WeakReference<IndexedWaypointPainter<?>> painter;
+        private final int index;
+
+        PositionListener(IndexedWaypointPainter<?> painter, int index) {
+            this.painter = new WeakReference<IndexedWaypointPainter<?>>(painter);
+            this.index = index;
+        }
+
+        public void propertyChange(PropertyChangeEvent evt) {
+            IndexedWaypointPainter<?> painter = this.painter.get();
+            if (painter == null) {
+                // the painter has been collected
+                ((Waypoint) evt.getSource()).removePropertyChangeListener("position", this);
+                return;
+            }
+            painter.positionChanged(index);
+        }
+    }
+
+    /**
+     * The projected positions of all waypoints at one zoom level, sorted by the
+     * grid cell they fall into. Cells are numbered row by row, so the waypoints
+     * of a row of cells inside the viewport are found by one binary search.
+     */
+    private static final class ZoomIndex {
+        final double mapWidth;
+        final double mapHeight;
+        final double[] x;
+        final double[] y;
+        final int cellSize;
+        final int columns;
+        final int rows;
+        final int indexBits;
+        // cell number and waypoint index, sorted
+        final long[] entries;
+
+        ZoomIndex(TileFactory factory, int zoom, Waypoint[] waypoints) {
+            Dimension sizeInTiles = factory.getMapSize(zoom);
+            int tileSize = factory.getTileSize(zoom);
+            mapWidth = (double) sizeInTiles.width * tileSize;
+            mapHeight = (double) sizeInTiles.height * tileSize;
+
+            int n = waypoints.length;
+            indexBits = Math.max(1, 64 - Long.numberOfLeadingZeros(n));
+            // coarser cells if the cell numbers would not fit next to the indices
+            int cell = CELL_SIZE;
+            while (64 - Long.numberOfLeadingZeros(columns(mapWidth, cell) * columns(mapHeight, cell)) + indexBits > 63) {
+                cell *= 2;
+            }
+            cellSize = cell;
+            columns = (int) columns(mapWidth, cell);
+            rows = (int) columns(mapHeight, cell);
+
+            x = new double[n];
+            y = new double[n];
+            long[] entries = new long[n];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                GeoPosition position = waypoints[i].getPosition();
+                if (position == null) {
+                    continue;
+                }
+
+                Point2D point = factory.geoToPixel(position, zoom);
+                x[i] = point.getX();
+                y[i] = point.getY();
+                entries[count++] = cellOf(x[i], y[i]) << indexBits | i;
+            }
+
+            Arrays.sort(entries, 0, count);
+            this.entries = count == n ? entries : Arrays.copyOf(entries, count);
+        }
+
+        private static long columns(double size, int cell) {
+            return Math.max(1, (long) Math.ceil(size / cell));
+        }
+
+        private long cellOf(double px, double py) {
+            long column = Math.min(Math.max((long) Math.floor(px / cellSize), 0), columns - 1);
+            long row = Math.min(Math.max((long) Math.floor(py / cellSize), 0), rows - 1);
+            return row * columns + column;
+        }
+
+        /**
+         * Adds the waypoints inside the viewport and its wrapped copies, except
+         * moved ones, to the visible waypoints of the painter.
+         */
+        void query(IndexedWaypointPainter<?> painter, Rectangle viewportBounds) {
+            double top = viewportBounds.getY();
+            double bottom = viewportBounds.getMaxY();
+            int firstRow = (int) Math.max(Math.floor(top / cellSize), 0);
+            int lastRow = (int) Math.min(Math.floor(bottom / cellSize), rows - 1);
+
+            int firstCopy = (int) Math.floor(viewportBounds.getX() / mapWidth);
+            int lastCopy = (int) Math.floor(viewportBounds.getMaxX() / mapWidth);
+            long mask = (1L << indexBits) - 1;
+            for (int copy = firstCopy; copy <= lastCopy; copy++) {
+                // the part of the viewport inside this copy of the map
+                double left = viewportBounds.getX() - copy * mapWidth;
+                double right = viewportBounds.getMaxX() - copy * mapWidth;
+                int firstColumn = (int) Math.max(Math.floor(left / cellSize), 0);
+                int lastColumn = (int) Math.min(Math.floor(right / cellSize), columns - 1);
+                if (firstColumn > lastColumn) {
+                    continue;
+                }
+
+                for (int row = firstRow; row <= lastRow; row++) {
+                    long rowStart = (long) row * columns;
+                    int i = lowerBound((rowStart + firstColumn) << indexBits);
+                    long end = (rowStart + lastColumn + 1) << indexBits;
+                    for (; i < entries.length && entries[i] < end; i++) {
+                        int w = (int) (entries[i] & mask);
+                        if (x[w] >= left && x[w] < right && y[w] >= top && y[w] < bottom && !painter.moved.get(w)) {
+                            painter.addVisible(w, copy);
+                        }
+                    }
+                }
+            }
+        }
+
+        private int lowerBound(long key) {
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -17,6 +17,14 @@ import java.net.URLConnection;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * A <code>ResponseCache</code> that stores responses in the user's home directory.
+ *
+ * @deprecated This cache is disabled, names its files by <code>URI.hashCode()</code>
+ * and revalidates every cached response with a blocking request. Use a
+ * {@link DiskTileStore} installed on the tile factory instead.
+ */
+@Deprecated
 public class LocalResponseCache extends ResponseCache {
     public static final boolean IS_CACHE_DISABLED = true;
     static {
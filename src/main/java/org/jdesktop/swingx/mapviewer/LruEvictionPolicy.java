@@ -0,0 +1,39 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used entry. Since the cache evicts entries until
+ * the weight of a tier fits its budget, a single large entry may displace
+ * several small ones.
+ */
+public class LruEvictionPolicy implements TileEvictionPolicy {
+	private final LinkedHashMap<URI, Boolean> entries = new LinkedHashMap<URI, Boolean>(16, 0.75f, true);
+
+	public void setMaximumWeight(long maxWeight) {
+		// the order of the entries does not depend on the budget
+	}
+
+	public void onAccess(URI key) {
+		entries.get(key);
+	}
+
+	public void onInsert(URI key, long weight) {
+		entries.put(key, Boolean.TRUE);
+	}
+
+	public void onRemove(URI key) {
+		entries.remove(key);
+	}
+
+	public URI nextVictim() {
+		Iterator<URI> iter = entries.keySet().iterator();
+		return iter.hasNext() ? iter.next() : null;
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,320 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdesktop.swingx.mapviewer.util.ByteBufferImageInputStream;
+
+/**
+ * Stores compressed tiles outside of the Java heap, so that a large compressed
+ * cache does not inflate the old generation and full garbage collection pauses.
+ * <p>
+ * The memory is split into slabs of equal size that are backed either by direct
+ * buffers or by a memory mapped file. Tiles are appended to the current slab.
+ * When it is full, writing continues in the next slab, which is recycled and
+ * loses all of its tiles. Tiles that are read while living in the older half of
+ * the slabs are copied to the current slab, so frequently used tiles survive
+ * recycling. Tiles are decoded straight from their slab through an
+ * <code>ImageInputStream</code> without being copied to the heap.
+ * <p>
+ * A slab is pinned while a tile is decoded from it. Writers never wait for
+ * readers: a slab that is pinned when it is due to be recycled is skipped, and
+ * writing continues in the next slab.
+ * <p>
+ * Install it on a {@link ConcurrentTileCache} using
+ * {@link ConcurrentTileCache#setOffHeapTileStore(OffHeapTileStore)}. Note that
+ * direct buffers are limited by the <code>-XX:MaxDirectMemorySize</code> option
+ * of the virtual machine.
+ */
+public class OffHeapTileStore {
+	private static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	private final ConcurrentHashMap<URI, Location> index = new ConcurrentHashMap<URI, Location>();
+	private final Slab[] slabs;
+	private final int slabSize;
+	private volatile int current;
+	private volatile long size;
+
+	/**
+	 * Creates a new store backed by direct buffers.
+	 * @param maxSize the maximum number of bytes used by the store
+	 */
+	public OffHeapTileStore(long maxSize) {
+		this(maxSize, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Creates a new store backed by direct buffers.
+	 * @param maxSize the maximum number of bytes used by the store
+	 * @param slabSize the size of a slab in bytes. Tiles larger than a slab are not stored.
+	 */
+	public OffHeapTileStore(long maxSize, int slabSize) {
+		this.slabSize = slabSize;
+		slabs = new Slab[slabCount(maxSize, slabSize)];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = new Slab(i, ByteBuffer.allocateDirect(slabSize));
+		}
+	}
+
+	/**
+	 * Creates a new store backed by a memory mapped file. The content of the file
+	 * is overwritten, it does not survive restarts.
+	 * @param file the file to map
+	 * @param maxSize the maximum number of bytes used by the store
+	 * @param slabSize the size of a slab in bytes. Tiles larger than a slab are not stored.
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public OffHeapTileStore(File file, long maxSize, int slabSize) throws IOException {
+		this.slabSize = slabSize;
+		slabs = new Slab[slabCount(maxSize, slabSize)];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < slabs.length; i++) {
+				slabs[i] = new Slab(i, channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize));
+			}
+		} finally {
+			// the mappings stay valid after the channel has been closed
+			raf.close();
+		}
+	}
+
+	private static int slabCount(long maxSize, int slabSize) {
+		if (slabSize <= 0) {
+			throw new IllegalArgumentException("slabSize invalid: " + slabSize + ". The slab size must be greater than 0.");
+		}
+		if (maxSize < slabSize) {
+			throw new IllegalArgumentException("maxSize invalid: " + maxSize + ". The maximum size must be at least the slab size.");
+		}
+
+		long count = maxSize / slabSize;
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("maxSize invalid: " + maxSize + ". Too many slabs.");
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Stores the compressed tile for the given URI.
+	 * @param uri the tile URI
+	 * @param bytes the bytes of the tile
+	 * @return the number of tiles that had to be evicted
+	 */
+	public synchronized int put(URI uri, byte[] bytes) {
+		if (bytes.length > slabSize) {
+			remove(uri);
+			return 0;
+		}
+
+		return append(uri, ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Checks whether a tile is stored for the given URI.
+	 * @param uri the tile URI
+	 * @return true if the store contains the tile
+	 */
+	public boolean contains(URI uri) {
+		return index.containsKey(uri);
+	}
+
+	/**
+	 * Decodes the tile stored for the given URI.
+	 * @param uri the tile URI
+	 * @return the decoded image, or null if the tile is not in the store
+	 * @throws IOException if the tile cannot be decoded
+	 */
+	public BufferedImage readImage(URI uri) throws IOException {
+		Location location = index.get(uri);
+		if (location == null) {
+			return null;
+		}
+
+		BufferedImage img;
+		Slab slab = location.slab;
+		// a pinned slab is not written to, checking the generation afterwards
+		// ensures that it has not been recycled before it was pinned
+		slab.readers.incrementAndGet();
+		try {
+			if (slab.generation != location.generation) {
+				// the slab has been recycled in the meantime
+				return null;
+			}
+
+			ByteBuffer view = slab.buffer.duplicate();
+			view.limit(location.offset + location.length);
+			view.position(location.offset);
+			img = TileDecoder.decode(new ByteBufferImageInputStream(view));
+		} finally {
+			slab.readers.decrementAndGet();
+		}
+
+		if (isOld(slab)) {
+			promote(uri, location);
+		}
+
+		return img;
+	}
+
+	/**
+	 * Removes the tile stored for the given URI.
+	 * @param uri the tile URI
+	 */
+	public synchronized void remove(URI uri) {
+		Location location = index.remove(uri);
+		if (location != null) {
+			size -= location.length;
+		}
+	}
+
+	/**
+	 * Removes all tiles.
+	 */
+	public synchronized void clear() {
+		for (Slab slab : slabs) {
+			recycle(slab);
+		}
+		current = 0;
+	}
+
+	/**
+	 * @return the number of bytes occupied by stored tiles
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes reserved by this store
+	 */
+	public long getMaxSize() {
+		return (long) slabs.length * slabSize;
+	}
+
+	private synchronized void promote(URI uri, Location location) {
+		if (index.get(uri) != location) {
+			// replaced or evicted in the meantime
+			return;
+		}
+
+		Slab slab = slabs[current];
+		if (slab.position + location.length > slabSize && slabs[(current + 1) % slabs.length] == location.slab) {
+			// the tile would be evicted by its own promotion
+			return;
+		}
+
+		// slabs are only recycled while holding this monitor, pinning the source
+		// keeps the appending from recycling it
+		location.slab.readers.incrementAndGet();
+		try {
+			ByteBuffer source = location.slab.buffer.duplicate();
+			source.limit(location.offset + location.length);
+			source.position(location.offset);
+			append(uri, source);
+		} finally {
+			location.slab.readers.decrementAndGet();
+		}
+	}
+
+	private int append(URI uri, ByteBuffer source) {
+		int evicted = 0;
+		int length = source.remaining();
+		Slab slab = slabs[current];
+		if (slab.position + length > slabSize) {
+			slab = null;
+			for (int i = 1; i <= slabs.length && slab == null; i++) {
+				Slab next = slabs[(current + i) % slabs.length];
+				if (next.readers.get() > 0) {
+					// still being read from, it is recycled the next time around
+					continue;
+				}
+
+				evicted += recycle(next);
+				if (next.position == 0) {
+					slab = next;
+				}
+			}
+
+			if (slab == null) {
+				// every slab is being read from
+				remove(uri);
+				return evicted;
+			}
+			current = slab.index;
+		}
+
+		ByteBuffer target = slab.buffer.duplicate();
+		target.position(slab.position);
+		target.put(source);
+
+		Location location = new Location(slab, slab.position, length, slab.generation);
+		slab.position += length;
+		slab.keys.add(uri);
+
+		Location old = index.put(uri, location);
+		size += length - (old != null ? old.length : 0);
+		return evicted;
+	}
+
+	private int recycle(Slab slab) {
+		int evicted = 0;
+		for (URI key : slab.keys) {
+			Location location = index.get(key);
+			if (location != null && location.slab == slab && location.generation == slab.generation) {
+				index.remove(key);
+				size -= location.length;
+				evicted++;
+			}
+		}
+
+		slab.keys.clear();
+		// readers pinning the slab from now on see that their tiles are gone
+		slab.generation++;
+		// a slab pinned before that is treated as full until it is recycled again
+		slab.position = slab.readers.get() > 0 ? slabSize : 0;
+		return evicted;
+	}
+
+	private boolean isOld(Slab slab) {
+		int age = (current - slab.index + slabs.length) % slabs.length;
+		return slabs.length > 1 && age >= slabs.length / 2;
+	}
+
+	private static final class Slab {
+		final int index;
+		final ByteBuffer buffer;
+		final AtomicInteger readers = new AtomicInteger();
+		final List<URI> keys = new ArrayList<URI>();
+		volatile int generation;
+		int position;
+
+		Slab(int index, ByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final class Location {
+		final Slab slab;
+		final int offset;
+		final int length;
+		final int generation;
+
+		Location(Slab slab, int offset, int length, int generation) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Deduplicates concurrent calls for the same key. The first caller executes the
+ * call, all callers arriving while it is running wait for and share its result.
+ * Callers arriving afterwards execute the call again.
+ */
+final class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	V execute(K key, Callable<V> callable) throws IOException {
+		FutureTask<V> task = new FutureTask<V>(callable);
+		FutureTask<V> running = calls.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				calls.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + key + ".");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
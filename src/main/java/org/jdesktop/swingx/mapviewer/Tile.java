@@ -13,6 +13,8 @@ import java.awt.EventQueue;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
 import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +34,7 @@ public class Tile extends AbstractBean {
     
     private static final Logger LOG = Logger.getLogger(Tile.class.getName());
 
-    private boolean isLoading = false;
+    private volatile boolean isLoading = false;
     static {
         LOG.setLevel(Level.OFF);
     }
@@ -50,9 +52,9 @@ public class Tile extends AbstractBean {
     private Throwable error;
     
     /**
-     * The url of the image to load for this tile
+     * The url of the image to load for this tile, built on first use
      */
-    private String url;
+    private volatile String url;
     
     /**
      * Indicates that loading has succeeded. A PropertyChangeEvent will be fired
@@ -70,6 +72,53 @@ public class Tile extends AbstractBean {
      */
     WeakReference<BufferedImage> image = new WeakReference<BufferedImage>(null);
     
+    /**
+     * Keeps the image strongly reachable while the tile is pinned, see {@link #pin()}.
+     */
+    private BufferedImage pinnedImage;
+    volatile boolean pinned;
+    
+    /**
+     * The state of this tile in the {@link TileScheduler} of its factory. Only
+     * accessed while holding the lock of the scheduler.
+     */
+    int queueIndex = -1;
+    double queuePriority;
+    long queueSequence;
+    
+    /**
+     * Set when loading has been cancelled because no viewport shows this tile
+     * anymore. The factory loads the tile again once it is requested.
+     */
+    volatile boolean cancelled;
+    
+    /**
+     * The connection this tile is currently downloaded through, if any.
+     * Disconnecting it aborts the download.
+     */
+    volatile HttpURLConnection connection;
+    
+    /**
+     * The HTTP caching metadata of the loaded image, or null if unknown.
+     */
+    volatile TileFreshness freshness;
+    
+    /**
+     * Set while the image is being revalidated in the background.
+     */
+    volatile boolean revalidating;
+    
+    /**
+     * The number of failed loads since the tile was last loaded successfully.
+     */
+    volatile int failedAttempts;
+    
+    /**
+     * The time in milliseconds before which the tile must not be loaded again
+     * after a failure, or 0.
+     */
+    volatile long retryAt;
+    
     /**
      * Create a new Tile at the specified tile point and zoom level
      * @param location
@@ -83,11 +132,10 @@ public class Tile extends AbstractBean {
     }
     
     /**
-     * Create a new Tile that loads its data from the given URL. The URL must
-     * resolve to an image
+     * Create a new Tile that loads its data from the URL given by the info of
+     * the factory. The URL must resolve to an image
      */
-    Tile(int x, int y, int zoom, String url, Priority priority, TileFactory dtf) {
-        this.url = url;
+    Tile(int x, int y, int zoom, Priority priority, TileFactory dtf) {
         loaded = false;
         this.zoom = zoom;
         this.x = x;
@@ -149,6 +197,60 @@ public class Tile extends AbstractBean {
         return img;
     }
     
+    /**
+     * Replaces the image of a loaded tile, e.g. after the tile server sent a
+     * newer version. Must be called on the event dispatch thread.
+     */
+    void updateImage(BufferedImage img) {
+        setImage(img);
+        firePropertyChange("loaded", false, true);
+    }
+    
+    /**
+     * Sets the image of this tile. The image is only referenced weakly unless
+     * the tile is pinned.
+     */
+    synchronized void setImage(BufferedImage img) {
+        image = new WeakReference<BufferedImage>(img);
+        if (pinned) {
+            pinnedImage = img;
+        }
+    }
+    
+    /**
+     * Keeps the image of this tile from being collected while the tile is
+     * visible. Called by the factory.
+     */
+    synchronized void pin() {
+        pinned = true;
+        pinnedImage = image.get();
+    }
+    
+    /**
+     * Releases the image of this tile to the garbage collector again.
+     */
+    synchronized void unpin() {
+        pinned = false;
+        pinnedImage = null;
+    }
+    
+    /**
+     * Drops the given image, so that it can be reused for another tile. The
+     * tile reloads its image when it is shown again, as if the image had been
+     * collected. Pinned tiles keep their image.
+     * @return true if the tile no longer references the image
+     */
+    synchronized boolean release(BufferedImage img) {
+        if (image.get() != img) {
+            return true;
+        }
+        if (pinned) {
+            return false;
+        }
+        image = new WeakReference<BufferedImage>(null);
+        return true;
+    }
+    
     /**
      * @return the location in the world at this zoom level that this tile should
      * be placed
@@ -166,21 +268,23 @@ public class Tile extends AbstractBean {
     }
     
     //////////////////JavaOne Hack///////////////////
-    //private PropertyChangeListener uniqueListener = null;
+    private PropertyChangeListener[] uniqueListeners = new PropertyChangeListener[0];
     /**
-     * Adds a single property change listener. If a listener has been previously
-     * added then it will be replaced by the new one.
+     * Adds a property change listener unless it has already been added using
+     * this method. Safe to call on every paint.
      * @param propertyName
      * @param listener
      */
     public void addUniquePropertyChangeListener(String propertyName, PropertyChangeListener listener) {
-//        if (uniqueListener != null && uniqueListener != listener) {
-//            removePropertyChangeListener(propertyName, uniqueListener);
-//        }
-//        if (uniqueListener != listener) {
-//            uniqueListener = listener;
-            addPropertyChangeListener(propertyName, listener);
-//        }
+        // called on every paint, so only register listeners not seen before
+        for (PropertyChangeListener unique : uniqueListeners) {
+            if (unique == listener) {
+                return;
+            }
+        }
+        uniqueListeners = Arrays.copyOf(uniqueListeners, uniqueListeners.length + 1);
+        uniqueListeners[uniqueListeners.length - 1] = listener;
+        addPropertyChangeListener(propertyName, listener);
     }
     
     /////////////////End JavaOne Hack/////////////////
@@ -250,6 +354,11 @@ public class Tile extends AbstractBean {
      * @return
      */
     public String getURL() {
+        String url = this.url;
+        if (url == null && dtf != null) {
+            url = dtf.getInfo().getTileUrl(x, y, zoom);
+            this.url = url;
+        }
         return url;
     }
 
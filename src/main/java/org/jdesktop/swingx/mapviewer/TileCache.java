@@ -10,29 +10,171 @@
 package org.jdesktop.swingx.mapviewer;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBuffer;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
 
 /**
  * An implementation only class for now. For internal use only.
+ * <p>
+ * Which tiles are evicted is decided by a {@link TileEvictionPolicy}, by
+ * default the least recently used ones.
  *
  * @author joshua.marinacci@sun.com
  */
 public class TileCache {
+	static final long DEFAULT_MAX_SIZE = 1000 * 1000 * 50;
+
+	static final TileEvictionPolicy.Factory LRU = new TileEvictionPolicy.Factory() {
+		public TileEvictionPolicy createPolicy() {
+			return new LruEvictionPolicy();
+		}
+	};
+
 	private Map<URI, BufferedImage> imgmap = new HashMap<URI, BufferedImage>();
-	private LinkedList<URI> imgmapAccessQueue = new LinkedList<URI>();
-	private int imagesize = 0;
+	private final TileEvictionPolicy imgmapPolicy;
+	private long imagesize = 0;
 	private Map<URI, byte[]> bytemap = new HashMap<URI, byte[]>();
-	private LinkedList<URI> bytemapAccessQueue = new LinkedList<URI>();
-	private int bytesize = 0;
+	private final TileEvictionPolicy bytemapPolicy;
+	private long bytesize = 0;
+	private volatile long maxImageSize = DEFAULT_MAX_SIZE;
+	private volatile long maxCompressedSize = DEFAULT_MAX_SIZE;
+	private volatile double imageFraction = 1;
+	private volatile double compressedFraction = 1;
+	private volatile TileMetrics metrics;
+	private final SingleFlight<URI, BufferedImage> decoder = new SingleFlight<URI, BufferedImage>();
+
+	public TileCache() {
+		this(LRU);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param policyFactory creates the eviction policies of the decoded images
+	 *            and of the compressed tiles
+	 */
+	public TileCache(TileEvictionPolicy.Factory policyFactory) {
+		imgmapPolicy = policyFactory.createPolicy();
+		bytemapPolicy = policyFactory.createPolicy();
+		imgmapPolicy.setMaximumWeight(getEffectiveMaxImageSize());
+		bytemapPolicy.setMaximumWeight(getEffectiveMaxCompressedSize());
+	}
+
+	/**
+	 * Gets the metrics hits, misses and evictions are reported to.
+	 * @return the metrics, or null if this cache is not used by a tile factory
+	 */
+	TileMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics hits, misses and evictions are reported to. Called by the
+	 * tile factory this cache is installed on.
+	 * @param metrics the metrics
+	 */
+	void setMetrics(TileMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the maximum number of bytes occupied by decoded images.
+	 * @return the budget of the image cache in bytes
+	 */
+	public long getMaxImageSize() {
+		return maxImageSize;
+	}
+
+	/**
+	 * Sets the maximum number of bytes occupied by decoded images. The cache is
+	 * shrunk immediately if it is larger than the new budget.
+	 * @param maxImageSize the budget of the image cache in bytes
+	 */
+	public void setMaxImageSize(long maxImageSize) {
+		if (maxImageSize < 0) {
+			throw new IllegalArgumentException("maxImageSize invalid: " + maxImageSize + ". The maximum size must not be negative.");
+		}
 
-	public TileCache() { }
+		this.maxImageSize = maxImageSize;
+		synchronized (imgmap) {
+			imgmapPolicy.setMaximumWeight(getEffectiveMaxImageSize());
+			trimImageCache();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of bytes occupied by compressed tiles.
+	 * @return the budget of the compressed cache in bytes
+	 */
+	public long getMaxCompressedSize() {
+		return maxCompressedSize;
+	}
+
+	/**
+	 * Sets the maximum number of bytes occupied by compressed tiles. The cache is
+	 * shrunk immediately if it is larger than the new budget.
+	 * @param maxCompressedSize the budget of the compressed cache in bytes
+	 */
+	public void setMaxCompressedSize(long maxCompressedSize) {
+		if (maxCompressedSize < 0) {
+			throw new IllegalArgumentException("maxCompressedSize invalid: " + maxCompressedSize + ". The maximum size must not be negative.");
+		}
+
+		this.maxCompressedSize = maxCompressedSize;
+		synchronized (bytemap) {
+			bytemapPolicy.setMaximumWeight(getEffectiveMaxCompressedSize());
+			trimByteCache();
+		}
+	}
+
+	/**
+	 * Limits the caches to a fraction of their budgets while the heap is short
+	 * of memory. Called by the {@link TileMemoryGovernor}; the configured
+	 * budgets are not changed, so they apply again once the pressure is gone.
+	 * @param imageFraction the fraction of the image budget that may be used
+	 * @param compressedFraction the fraction of the compressed budget that may be used
+	 */
+	void setMemoryPressure(double imageFraction, double compressedFraction) {
+		this.imageFraction = imageFraction;
+		this.compressedFraction = compressedFraction;
+		synchronized (imgmap) {
+			imgmapPolicy.setMaximumWeight(getEffectiveMaxImageSize());
+			trimImageCache();
+		}
+		synchronized (bytemap) {
+			bytemapPolicy.setMaximumWeight(getEffectiveMaxCompressedSize());
+			trimByteCache();
+		}
+	}
+
+	/**
+	 * @return the image budget reduced by the current memory pressure
+	 */
+	long getEffectiveMaxImageSize() {
+		return (long) (maxImageSize * imageFraction);
+	}
+
+	/**
+	 * @return the compressed budget reduced by the current memory pressure
+	 */
+	long getEffectiveMaxCompressedSize() {
+		return (long) (maxCompressedSize * compressedFraction);
+	}
+
+	/**
+	 * Returns the number of bytes occupied by the pixel data of an image. The size
+	 * is computed from the data buffer of the image raster, so it reflects the
+	 * actual pixel format of the image, e.g. one byte per pixel for indexed images.
+	 * @param img the image
+	 * @return the size of the image in bytes
+	 */
+	public static long getMemorySize(BufferedImage img) {
+		DataBuffer buffer = img.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
 
 	/**
 	 * Put a tile image into the cache. This puts both a buffered image and array of bytes that make up the compressed image.
@@ -46,16 +188,15 @@ public class TileCache {
 	 */
 	public void put(URI uri, byte[] bimg, BufferedImage img) {
 		synchronized (bytemap) {
-			while (bytesize > 1000 * 1000 * 50) {
-				URI olduri = bytemapAccessQueue.removeFirst();
-				byte[] oldbimg = bytemap.remove(olduri);
-				bytesize -= oldbimg.length;
-				p("removed 1 img from byte cache");
+			// the tile may be replaced after it has been revalidated
+			byte[] old = bytemap.put(uri, bimg);
+			if (old != null) {
+				bytesize -= old.length;
+				bytemapPolicy.onRemove(uri);
 			}
-
-			bytemap.put(uri, bimg);
+			bytemapPolicy.onInsert(uri, bimg.length);
 			bytesize += bimg.length;
-			bytemapAccessQueue.addLast(uri);
+			trimByteCache();
 		}
 		addToImageCache(uri, img);
 	}
@@ -63,40 +204,93 @@ public class TileCache {
 	/**
 	 * Returns a buffered image for the requested URI from the cache. This method must return null if the image is not in the cache. If the image is unavailable
 	 * but it's compressed version *is* available, then the compressed version will be expanded and returned.
+	 * <p>
+	 * An image held by the cache is pinned in the {@link TileRasterPool}, so that it is not recycled if it is
+	 * evicted before the caller has handed it to a tile. The caller must unpin it afterwards.
 	 *
 	 * @param uri URI of the image previously put in the cache
 	 * @return the image matching the requested URI, or null if not available
 	 * @throws IOException
 	 */
-	public BufferedImage get(URI uri) throws IOException {
+	public BufferedImage get(final URI uri) throws IOException {
+		TileMetrics metrics = this.metrics;
 		synchronized (imgmap) {
-			if (imgmap.containsKey(uri)) {
-				imgmapAccessQueue.remove(uri);
-				imgmapAccessQueue.addLast(uri);
-				return imgmap.get(uri);
+			imgmapPolicy.onAccess(uri);
+			BufferedImage img = imgmap.get(uri);
+			if (img != null) {
+				TileRasterPool.getInstance().pin(img);
+				if (metrics != null) {
+					metrics.recordImageHit();
+				}
+				return img;
 			}
 		}
+		if (metrics != null) {
+			metrics.recordImageMiss();
+		}
+		final byte[] bimg;
 		synchronized (bytemap) {
-			if (bytemap.containsKey(uri)) {
-				p("retrieving from bytes");
-				bytemapAccessQueue.remove(uri);
-				bytemapAccessQueue.addLast(uri);
-				BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytemap.get(uri)));
-				addToImageCache(uri, img);
+			bytemapPolicy.onAccess(uri);
+			bimg = bytemap.get(uri);
+		}
+		if (metrics != null) {
+			if (bimg != null) {
+				metrics.recordCompressedHit();
+			} else {
+				metrics.recordCompressedMiss();
+			}
+		}
+		if (bimg == null) {
+			return null;
+		}
+
+		p("retrieving from bytes");
+		BufferedImage img = decode(uri, new Callable<BufferedImage>() {
+			public BufferedImage call() throws IOException {
+				BufferedImage img = TileDecoder.decode(bimg);
+				if (img != null) {
+					addToImageCache(uri, img);
+				}
 				return img;
 			}
+		});
+		if (img == null) {
+			return null;
 		}
-		return null;
+
+		synchronized (imgmap) {
+			if (imgmap.get(uri) == img) {
+				TileRasterPool.getInstance().pin(img);
+				return img;
+			}
+		}
+		// the shared image has been evicted and may be recycled already
+		return TileDecoder.decode(bimg);
+	}
+
+	/**
+	 * Runs the given decoder without holding any lock of this cache. Concurrent
+	 * calls for the same URI are executed only once and share the decoded image.
+	 * @param uri the URI of the tile to decode
+	 * @param decoder decodes the tile and adds it to the cache
+	 * @return the decoded image
+	 * @throws IOException if the tile cannot be decoded
+	 */
+	BufferedImage decode(URI uri, Callable<BufferedImage> decoder) throws IOException {
+		return this.decoder.execute(uri, decoder);
 	}
 
 	/**
 	 * Request that the cache free up some memory. How this happens or how much memory is freed is up to the TileCache implementation. Subclasses can implement
 	 * their own strategy. The default strategy is to clear out all buffered images but retain the compressed versions.
+	 * <p>
+	 * Tile factories no longer call this method, the {@link TileMemoryGovernor}
+	 * shrinks the caches gradually instead.
 	 */
 	public void needMoreMemory() {
 		synchronized (imgmap) {
 			imgmap.clear();
-			imgmapAccessQueue.clear();
+			imgmapPolicy.clear();
 			imagesize = 0;
 		}
 
@@ -106,34 +300,83 @@ public class TileCache {
 	public void clear() {
 		synchronized (imgmap) {
 			imgmap.clear();
-			imgmapAccessQueue.clear();
+			imgmapPolicy.clear();
 			imagesize = 0;
 		}
 
 		synchronized (bytemap) {
 			bytemap.clear();
-			bytemapAccessQueue.clear();
+			bytemapPolicy.clear();
 			bytesize = 0;
 		}
 	}
 
 	private void addToImageCache(final URI uri, final BufferedImage img) {
 		synchronized (imgmap) {
-			while (imagesize > 1000 * 1000 * 50) {
-				URI olduri = imgmapAccessQueue.removeFirst();
-				BufferedImage oldimg = imgmap.remove(olduri);
-				imagesize -= oldimg.getWidth() * oldimg.getHeight() * 4;
-				p("removed 1 img from image cache");
+			long size = getMemorySize(img);
+			BufferedImage old = imgmap.put(uri, img);
+			if (old != null) {
+				imagesize -= getMemorySize(old);
+				imgmapPolicy.onRemove(uri);
+				if (old != img) {
+					TileRasterPool.getInstance().release(old);
+				}
 			}
-
-			imgmap.put(uri, img);
-			imagesize += img.getWidth() * img.getHeight() * 4;
-			imgmapAccessQueue.addLast(uri);
+			imgmapPolicy.onInsert(uri, size);
+			imagesize += size;
+			trimImageCache();
 		}
 		p("added to cache: " + " uncompressed = " + imgmap.keySet().size() + " / " + imagesize / 1000 + "k" + " compressed = " + bytemap.keySet().size()
 				+ " / " + bytesize / 1000 + "k");
 	}
 
+	private void trimByteCache() {
+		int evicted = 0;
+		long max = getEffectiveMaxCompressedSize();
+		while (bytesize > max) {
+			URI olduri = bytemapPolicy.nextVictim();
+			if (olduri == null) {
+				break;
+			}
+			bytemapPolicy.onRemove(olduri);
+			byte[] oldbimg = bytemap.remove(olduri);
+			if (oldbimg != null) {
+				bytesize -= oldbimg.length;
+				evicted++;
+				p("removed 1 img from byte cache");
+			}
+		}
+
+		TileMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.recordCompressedEvictions(evicted);
+		}
+	}
+
+	private void trimImageCache() {
+		int evicted = 0;
+		long max = getEffectiveMaxImageSize();
+		while (imagesize > max) {
+			URI olduri = imgmapPolicy.nextVictim();
+			if (olduri == null) {
+				break;
+			}
+			imgmapPolicy.onRemove(olduri);
+			BufferedImage oldimg = imgmap.remove(olduri);
+			if (oldimg != null) {
+				imagesize -= getMemorySize(oldimg);
+				TileRasterPool.getInstance().release(oldimg);
+				evicted++;
+				p("removed 1 img from image cache");
+			}
+		}
+
+		TileMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.recordImageEvictions(evicted);
+		}
+	}
+
 	private void p(String string) {
 		//System.out.println(string);
 	}
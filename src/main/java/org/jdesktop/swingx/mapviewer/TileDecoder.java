@@ -0,0 +1,108 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import org.jdesktop.swingx.mapviewer.util.ByteBufferImageInputStream;
+import org.jdesktop.swingx.util.GraphicsUtilities;
+
+/**
+ * Decodes tiles into the most compact image that can be painted directly:
+ * <ul>
+ * <li>palette and grayscale tiles keep their one byte per pixel (or less),</li>
+ * <li>tiles without alpha, e.g. JPEG basemaps, become opaque RGB images,
+ * which are painted without blending,</li>
+ * <li>only tiles with an alpha channel become translucent ARGB images.</li>
+ * </ul>
+ * RGB and ARGB tiles are decoded straight into a recycled image from the
+ * {@link TileRasterPool} if one of the same size is available, so decoding
+ * does not allocate a new raster. Decoding into the final image also saves
+ * the copy made by <code>GraphicsUtilities.toCompatibleImage</code>. Tiles in
+ * any other format are converted to a compatible image as before.
+ */
+public final class TileDecoder {
+	private TileDecoder() {
+	}
+
+	/**
+	 * Decodes a tile.
+	 * @param bytes the encoded tile
+	 * @return the decoded image, or null if no reader supports the format
+	 * @throws IOException if the tile cannot be decoded
+	 */
+	public static BufferedImage decode(byte[] bytes) throws IOException {
+		return decode(new ByteBufferImageInputStream(ByteBuffer.wrap(bytes)));
+	}
+
+	/**
+	 * Decodes a tile. The stream is closed afterwards.
+	 * @param in the encoded tile
+	 * @return the decoded image, or null if no reader supports the format
+	 * @throws IOException if the tile cannot be decoded
+	 */
+	public static BufferedImage decode(ImageInputStream in) throws IOException {
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				ImageTypeSpecifier raw = reader.getRawImageType(0);
+				ColorModel cm = raw != null ? raw.getColorModel() : null;
+				if (cm instanceof IndexColorModel || cm != null && cm.getNumComponents() == 1 && cm.getPixelSize() <= 8) {
+					// already as compact as it gets
+					param.setDestinationType(raw);
+					return reader.read(0, param);
+				}
+
+				int type = cm == null ? BufferedImage.TYPE_CUSTOM : cm.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+				if (!canDecodeInto(reader, type)) {
+					return GraphicsUtilities.toCompatibleImage(reader.read(0, param));
+				}
+
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				BufferedImage img = TileRasterPool.getInstance().acquire(width, height, type);
+				if (img == null) {
+					img = new BufferedImage(width, height, type);
+				}
+				// every pixel of a recycled image is overwritten by the decoder
+				param.setDestination(img);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean canDecodeInto(ImageReader reader, int type) throws IOException {
+		if (type == BufferedImage.TYPE_CUSTOM) {
+			return false;
+		}
+
+		for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext();) {
+			if (types.next().getBufferedImageType() == type) {
+				return true;
+			}
+		}
+
+		// the JPEG reader only offers 3 byte BGR, but converts into RGB images as well
+		return type == BufferedImage.TYPE_INT_RGB && "jpeg".equalsIgnoreCase(reader.getFormatName());
+	}
+}
@@ -0,0 +1,70 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.net.URI;
+
+/**
+ * Decides which entries a {@link TileCache} evicts when one of its tiers
+ * exceeds its maximum size. A policy instance is used for a single tier, or a
+ * single segment of a tier of a {@link ConcurrentTileCache}, and is always
+ * accessed while the tier or segment is locked, so implementations do not need
+ * to be thread-safe.
+ * <p>
+ * The cache keeps track of the weight of its entries itself and asks the policy
+ * for victims until the tier is small enough. A policy may also name the entry
+ * that has just been inserted as victim and thus reject it.
+ *
+ * @see LruEvictionPolicy
+ * @see TinyLfuEvictionPolicy
+ */
+public interface TileEvictionPolicy {
+
+	/**
+	 * Creates a new policy for each segment of a cache tier.
+	 */
+	public interface Factory {
+		/**
+		 * @return a new eviction policy
+		 */
+		public TileEvictionPolicy createPolicy();
+	}
+
+	/**
+	 * Sets the maximum weight of the segment this policy is used for. Called
+	 * before the first entry is inserted and whenever the budget of the tier changes.
+	 * @param maxWeight the maximum weight in bytes
+	 */
+	public void setMaximumWeight(long maxWeight);
+
+	/**
+	 * Records a lookup of the given key. This is called for every lookup,
+	 * regardless of whether the key is in the cache or not.
+	 * @param key the key that has been looked up
+	 */
+	public void onAccess(URI key);
+
+	/**
+	 * Records that an entry has been added.
+	 * @param key the key of the new entry
+	 * @param weight the weight of the new entry in bytes
+	 */
+	public void onInsert(URI key, long weight);
+
+	/**
+	 * Records that an entry has been removed, either because it has been
+	 * evicted or replaced.
+	 * @param key the key of the removed entry
+	 */
+	public void onRemove(URI key);
+
+	/**
+	 * Selects the next entry to evict. The selected entry is removed from the
+	 * cache and reported to {@link #onRemove(URI)} afterwards.
+	 * @return the key of the entry to evict, or null if there are no entries
+	 */
+	public URI nextVictim();
+
+	/**
+	 * Forgets about all entries.
+	 */
+	public void clear();
+}
@@ -13,6 +13,7 @@ import org.jdesktop.swingx.mapviewer.util.GeoUtil;
 
 import java.awt.*;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -107,6 +108,39 @@ public abstract class TileFactory /*TODO extends AbstractBean*/ {
      * @param tile The tile to load.
      */
     protected abstract void startLoading(Tile tile);
+    
+    /**
+     * Tells this factory which part of the map a component currently shows, so
+     * that tiles close to the center of the viewport can be loaded first. The
+     * default implementation does nothing.
+     * @param owner the component showing the map, e.g. a <code>JXMapViewer</code>
+     * @param zoom the zoom level shown by the component
+     * @param viewportBounds the bounds of the viewport in pixels of the world bitmap
+     */
+    public void setViewport(Object owner, int zoom, Rectangle viewportBounds) {
+    }
+    
+    /**
+     * Returns the image of a tile if it has been loaded and is still in
+     * memory. Unlike {@link #getTile(int, int, int)} this never starts
+     * loading the tile, so it can be used to draw a tile of another zoom
+     * level while the requested one is loading. The default implementation
+     * returns null.
+     * @param x the tile x, wrapped around the map
+     * @param y the tile y
+     * @param zoom the zoom level
+     * @return the image, or null if it is not in memory
+     */
+    public BufferedImage getCachedTileImage(int x, int y, int zoom) {
+        return null;
+    }
+    
+    /**
+     * Tells this factory that a component no longer shows its map.
+     * @param owner the component passed to {@link #setViewport(Object, int, Rectangle)}
+     */
+    public void removeViewport(Object owner) {
+    }
 
     public void addHttpRequestProperty(String key, String value) {
         if (httpRequestProperties == null) {
@@ -0,0 +1,173 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The failure state of a tile factory: the negative cache of missing tiles and
+ * a circuit breaker per host, both driven by a {@link TileRetryPolicy}.
+ */
+final class TileFailures {
+	// the negative cache is pruned of expired entries when it grows beyond this size
+	private static final int PRUNE_SIZE = 4096;
+
+	private final ConcurrentHashMap<URI, Long> missing = new ConcurrentHashMap<URI, Long>();
+	private final ConcurrentHashMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+	private volatile TileRetryPolicy policy = new TileRetryPolicy();
+
+	TileRetryPolicy getPolicy() {
+		return policy;
+	}
+
+	void setPolicy(TileRetryPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the time until which the tile is known to be missing, or 0 if it is not
+	 */
+	long getMissingUntil(URI uri, long now) {
+		Long until = missing.get(uri);
+		if (until == null) {
+			return 0;
+		}
+		if (until <= now) {
+			missing.remove(uri, until);
+			return 0;
+		}
+		return until;
+	}
+
+	/**
+	 * Remembers a missing tile.
+	 * @return the time until which the tile is remembered
+	 */
+	long markMissing(URI uri, long now) {
+		long until = now + policy.getNegativeCacheTtl();
+		if (until > now) {
+			if (missing.size() >= PRUNE_SIZE) {
+				prune(now);
+			}
+			missing.put(uri, until);
+		}
+		return until;
+	}
+
+	private void prune(long now) {
+		for (Iterator<Long> it = missing.values().iterator(); it.hasNext();) {
+			if (it.next() <= now) {
+				it.remove();
+			}
+		}
+	}
+
+	void clear() {
+		missing.clear();
+		breakers.clear();
+	}
+
+	/**
+	 * Checks whether a request may be sent to the given host. While the breaker
+	 * of the host is open, only a single probe is let through per probe interval.
+	 * @throws HostUnavailableException if the breaker of the host is open
+	 */
+	void checkHost(String host, long now) throws HostUnavailableException {
+		checkHost(host, now, true);
+	}
+
+	/**
+	 * Checks whether a request may be sent to the given host, without starting
+	 * a probe. Called before waiting for a connection, so that requests to an
+	 * unavailable host fail without taking a connection from other tiles.
+	 * @throws HostUnavailableException if the breaker of the host is open
+	 */
+	void precheckHost(String host, long now) throws HostUnavailableException {
+		checkHost(host, now, false);
+	}
+
+	private void checkHost(String host, long now, boolean startProbe) throws HostUnavailableException {
+		Breaker breaker = breakers.get(host);
+		if (breaker == null) {
+			return;
+		}
+
+		synchronized (breaker) {
+			if (breaker.openUntil == 0) {
+				return;
+			}
+			// a probe that never reported back, e.g. because it was cancelled, is replaced
+			if (now >= breaker.openUntil && (!breaker.probing || now - breaker.probeStarted >= policy.getProbeInterval())) {
+				if (startProbe) {
+					breaker.probing = true;
+					breaker.probeStarted = now;
+				}
+				return;
+			}
+
+			// tiles retry once the running probe is likely to have finished
+			long retryAt = breaker.probing ? now + policy.getInitialBackoff() : breaker.openUntil;
+			throw new HostUnavailableException(host, retryAt);
+		}
+	}
+
+	/**
+	 * Records that the host answered, closing its breaker.
+	 */
+	void recordSuccess(String host) {
+		Breaker breaker = breakers.get(host);
+		if (breaker != null) {
+			synchronized (breaker) {
+				breaker.failures = 0;
+				breaker.openUntil = 0;
+				breaker.probing = false;
+			}
+		}
+	}
+
+	/**
+	 * Records that a request to the host failed, opening its breaker after too
+	 * many consecutive failures or a failed probe.
+	 */
+	void recordFailure(String host, long now) {
+		Breaker breaker = breakers.get(host);
+		if (breaker == null) {
+			Breaker created = new Breaker();
+			breaker = breakers.putIfAbsent(host, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+
+		TileRetryPolicy policy = this.policy;
+		synchronized (breaker) {
+			breaker.failures++;
+			if (breaker.probing || breaker.failures >= policy.getFailureThreshold()) {
+				breaker.openUntil = now + TileRetryPolicy.jitter(policy.getProbeInterval());
+				breaker.probing = false;
+			}
+		}
+	}
+
+	private static final class Breaker {
+		int failures;
+		long openUntil;
+		boolean probing;
+		long probeStarted;
+	}
+
+	/**
+	 * Thrown instead of sending a request to a host whose breaker is open.
+	 */
+	static final class HostUnavailableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		final long retryAt;
+
+		HostUnavailableException(String host, long retryAt) {
+			super("Requests to " + host + " are suspended after repeated failures.");
+			this.retryAt = retryAt;
+		}
+	}
+}
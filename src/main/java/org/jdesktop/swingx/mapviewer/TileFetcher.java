@@ -0,0 +1,193 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Downloads the bytes of tiles.
+ * <p>
+ * HTTP connections are pooled per host by the keep-alive cache of the JDK
+ * (its size is set by the <code>http.maxConnections</code> system property).
+ * A connection only returns to that pool if its response has been read
+ * completely and its stream has been closed, so this fetcher always consumes
+ * the whole body, including the body of error responses, and never calls
+ * <code>disconnect()</code> unless a load is cancelled. Tiles the server
+ * does not have are reported as <code>FileNotFoundException</code>.
+ * <p>
+ * If the caching metadata of a previously downloaded tile is passed, the
+ * request is made conditional, so an unchanged tile costs no body transfer.
+ */
+final class TileFetcher {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	// error bodies larger than this are not worth reading to keep the connection
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private TileFetcher() {
+	}
+
+	/**
+	 * Downloads a tile. While the download is running, the connection is
+	 * available from {@link Tile#connection}, so that the download can be
+	 * aborted by disconnecting it.
+	 * @param url the tile URL
+	 * @param requestProperties additional request headers, may be null
+	 * @param tile the tile being loaded
+	 * @param cached the caching metadata of the tile to revalidate, or null to download it unconditionally
+	 * @return the response
+	 * @throws IOException if the tile cannot be downloaded
+	 */
+	static Response fetch(URL url, Map<String, String> requestProperties, Tile tile, TileFreshness cached) throws IOException {
+		URLConnection connection = url.openConnection();
+		if (requestProperties != null) {
+			for (Map.Entry<String, String> entry : requestProperties.entrySet()) {
+				connection.setRequestProperty(entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (!(connection instanceof HttpURLConnection)) {
+			return new Response(read(connection), null);
+		}
+
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				connection.setRequestProperty("If-None-Match", cached.getETag());
+			}
+			if (cached.getLastModified() > 0) {
+				connection.setIfModifiedSince(cached.getLastModified());
+			}
+		}
+
+		HttpURLConnection http = (HttpURLConnection) connection;
+		tile.connection = http;
+		try {
+			if (tile.cancelled) {
+				throw new InterruptedIOException("Loading of " + url + " has been cancelled.");
+			}
+
+			int code = http.getResponseCode();
+			if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+				drain(http.getErrorStream());
+				if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+					// the server is fine, it just does not have this tile
+					throw new FileNotFoundException("Server returned HTTP response code: " + code + " for URL: " + url);
+				}
+				throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+			}
+
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				drain(http.getInputStream());
+				return new Response(null, TileFreshness.fromResponse(http, cached));
+			}
+
+			return new Response(read(http), TileFreshness.fromResponse(http, null));
+		} finally {
+			tile.connection = null;
+		}
+	}
+
+	/**
+	 * The result of a fetch.
+	 */
+	static final class Response {
+		final byte[] bytes;
+		final TileFreshness freshness;
+
+		Response(byte[] bytes, TileFreshness freshness) {
+			this.bytes = bytes;
+			this.freshness = freshness;
+		}
+
+		/**
+		 * @return true if the server confirmed that the cached tile is still valid
+		 */
+		boolean isNotModified() {
+			return bytes == null;
+		}
+	}
+
+	private static byte[] read(URLConnection connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		try {
+			return readFully(in, connection.getContentLengthLong());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a stream to its end. If the length is known, the bytes are read
+	 * straight into an array of that size.
+	 */
+	static byte[] readFully(InputStream in, long length) throws IOException {
+		if (length >= 0 && length < Integer.MAX_VALUE - 8) {
+			byte[] bytes = new byte[(int) length];
+			int count = 0;
+			while (count < bytes.length) {
+				int n = in.read(bytes, count, bytes.length - count);
+				if (n == -1) {
+					return Arrays.copyOf(bytes, count);
+				}
+				count += n;
+			}
+
+			int next = in.read();
+			if (next == -1) {
+				return bytes;
+			}
+
+			// the content length was wrong, continue with a growing buffer
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + BUFFER_SIZE);
+			out.write(bytes);
+			out.write(next);
+			copy(in, out);
+			return out.toByteArray();
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+		copy(in, out);
+		return out.toByteArray();
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+	}
+
+	/**
+	 * Reads and closes the body of an error response, so that the connection
+	 * can be reused.
+	 */
+	static void drain(InputStream in) {
+		if (in == null) {
+			return;
+		}
+
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int total = 0;
+			int n;
+			while (total < MAX_DRAIN && (n = in.read(buf)) != -1) {
+				total += n;
+			}
+		} catch (IOException e) {
+			// the connection is discarded anyway
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * The HTTP caching metadata of a tile: its validators (<code>ETag</code> and
+ * <code>Last-Modified</code>) and the time until which it may be used without
+ * asking the server. Stale tiles are still shown, but revalidated in the
+ * background using a conditional request.
+ */
+public final class TileFreshness {
+	// upper bound for the heuristic freshness of tiles without explicit expiration
+	private static final long MAX_HEURISTIC_LIFETIME = 24L * 60 * 60 * 1000;
+	// lower bound for the freshness of every response, so that tiles the server
+	// marks as expired at once are not revalidated on every repaint
+	static final long MIN_LIFETIME = 60 * 1000;
+
+	private final String etag;
+	private final long lastModified;
+	private final long expires;
+
+	/**
+	 * Creates new freshness metadata.
+	 * @param etag the entity tag of the tile, or null if the server did not send one
+	 * @param lastModified the modification time in milliseconds since the epoch, or 0 if unknown
+	 * @param expires the time in milliseconds since the epoch after which the tile is stale
+	 */
+	public TileFreshness(String etag, long lastModified, long expires) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.expires = expires;
+	}
+
+	/**
+	 * Reads the caching metadata from a response. Validators missing from the
+	 * response are taken from the previous metadata, as a <code>304 Not
+	 * Modified</code> response need not repeat them. The tile stays fresh for
+	 * at least a minute, even if the response expires immediately.
+	 * @param connection the connection holding the response
+	 * @param previous the metadata of the cached tile, or null
+	 * @return the metadata
+	 */
+	static TileFreshness fromResponse(URLConnection connection, TileFreshness previous) {
+		long now = System.currentTimeMillis();
+
+		String etag = connection.getHeaderField("ETag");
+		long lastModified = connection.getLastModified();
+		if (previous != null) {
+			if (etag == null) {
+				etag = previous.etag;
+			}
+			if (lastModified == 0) {
+				lastModified = previous.lastModified;
+			}
+		}
+
+		long expires = Math.max(expiration(connection, lastModified, now), now + MIN_LIFETIME);
+		return new TileFreshness(etag, lastModified, expires);
+	}
+
+	private static long expiration(URLConnection connection, long lastModified, long now) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					return now;
+				}
+
+				if (directive.startsWith("max-age=")) {
+					try {
+						long maxAge = Long.parseLong(directive.substring(8).trim());
+						long age = Math.max(0, connection.getHeaderFieldLong("Age", 0));
+						return now + Math.max(0, maxAge - age) * 1000;
+					} catch (NumberFormatException e) {
+						// fall back to the other headers
+					}
+				}
+			}
+		}
+
+		long expires = connection.getExpiration();
+		if (expires > 0) {
+			return expires;
+		}
+
+		if (lastModified > 0) {
+			// heuristic freshness: a tenth of the time since the last modification
+			long date = connection.getDate() > 0 ? connection.getDate() : now;
+			return now + Math.min(Math.max(0, date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+		}
+
+		// without any information the tile is trusted forever
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the entity tag of the tile, or null if unknown
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return the modification time in milliseconds since the epoch, or 0 if unknown
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch after which the tile is stale
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * @param now the current time in milliseconds since the epoch
+	 * @return true if the tile must be revalidated
+	 */
+	public boolean isStale(long now) {
+		return now >= expires;
+	}
+
+	/**
+	 * @return true if the tile can be revalidated using a conditional request
+	 */
+	public boolean hasValidators() {
+		return etag != null || lastModified > 0;
+	}
+
+	/**
+	 * @param expires the new expiration time
+	 * @return a copy of this metadata expiring at the given time
+	 */
+	public TileFreshness withExpires(long expires) {
+		return new TileFreshness(etag, lastModified, expires);
+	}
+}
@@ -0,0 +1,104 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.util.Arrays;
+
+/**
+ * The tiles of a factory, indexed by a key packing zoom level, x and y into a
+ * <code>long</code>. Looking up a tile neither builds its URL nor allocates,
+ * so painting already loaded tiles produces no garbage. The map uses open
+ * addressing with linear probing and is not thread safe.
+ */
+final class TileMap {
+	private static final int INITIAL_CAPACITY = 256;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private Tile[] tiles = new Tile[INITIAL_CAPACITY];
+	private int size;
+
+	/**
+	 * Packs the coordinates of a tile. Coordinates beyond 28 bits, i.e. of
+	 * tiles far off the map, may share a key, so a hit is always compared
+	 * against the coordinates of the tile.
+	 */
+	private static long key(int x, int y, int zoom) {
+		return ((long) (zoom & 0xFF) << 56) | ((long) (x & 0xFFFFFFF) << 28) | (y & 0xFFFFFFFL);
+	}
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @return the tile with the given coordinates, or null
+	 */
+	Tile get(int x, int y, int zoom) {
+		long key = key(x, y, zoom);
+		int mask = keys.length - 1;
+		for (int i = hash(key, mask);; i = (i + 1) & mask) {
+			Tile tile = tiles[i];
+			if (tile == null) {
+				return null;
+			}
+			if (keys[i] == key && tile.getX() == x && tile.getY() == y && tile.getZoom() == zoom) {
+				return tile;
+			}
+		}
+	}
+
+	/**
+	 * Adds a tile, replacing a tile with the same key.
+	 */
+	void put(Tile tile) {
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+
+		long key = key(tile.getX(), tile.getY(), tile.getZoom());
+		int mask = keys.length - 1;
+		for (int i = hash(key, mask);; i = (i + 1) & mask) {
+			if (tiles[i] == null) {
+				keys[i] = key;
+				tiles[i] = tile;
+				size++;
+				return;
+			}
+			if (keys[i] == key) {
+				tiles[i] = tile;
+				return;
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Tile[] oldTiles = tiles;
+		keys = new long[capacity];
+		tiles = new Tile[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldTiles.length; j++) {
+			if (oldTiles[j] != null) {
+				int i = hash(oldKeys[j], mask);
+				while (tiles[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				tiles[i] = oldTiles[j];
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		if (keys.length > INITIAL_CAPACITY) {
+			keys = new long[INITIAL_CAPACITY];
+			tiles = new Tile[INITIAL_CAPACITY];
+		} else {
+			Arrays.fill(tiles, null);
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,232 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Shrinks the tile caches of all factories before the heap runs out of memory.
+ * The governor watches the largest heap pool, usually the old generation,
+ * through the usage thresholds of its <code>MemoryPoolMXBean</code>. When the
+ * pool is still full after a garbage collection, the caches are limited to a
+ * fraction of their budgets, one pressure level at a time, and released again
+ * level by level once the heap has recovered.
+ * <p>
+ * Decoded images are given up before compressed tiles, since they are larger
+ * and can be decoded again without a download. The images of visible tiles
+ * are pinned by their factories and are never evicted by the governor.
+ * <p>
+ * Thresholds already set on the pool by the application are left alone.
+ */
+public final class TileMemoryGovernor {
+	private static final Logger LOG = Logger.getLogger(TileMemoryGovernor.class.getName());
+
+	/** The occupancy after a collection above which the pressure rises by one level. */
+	private static final double HIGH = 0.75;
+	/** The occupancy after a collection above which the caches are shrunk to the minimum at once. */
+	private static final double CRITICAL = 0.90;
+	/** The occupancy after a collection below which the pressure falls by one level. */
+	private static final double LOW = 0.60;
+	private static final long CHECK_INTERVAL = 2000;
+
+	// fractions of the cache budgets usable at each pressure level
+	private static final double[] IMAGE_FRACTIONS = { 1, 0.5, 0.25, 0 };
+	private static final double[] COMPRESSED_FRACTIONS = { 1, 1, 0.5, 0.25 };
+
+	private static final TileMemoryGovernor INSTANCE = new TileMemoryGovernor();
+
+	private final MemoryPoolMXBean pool;
+	// the caches and the number of factories using each of them
+	private final Map<TileCache, Integer> caches = new WeakHashMap<TileCache, Integer>();
+	private ScheduledExecutorService checker;
+	private boolean checkScheduled;
+	private volatile int level;
+
+	private TileMemoryGovernor() {
+		pool = findPool();
+		if (pool == null) {
+			LOG.info("No heap pool supports usage thresholds, tile caches are not shrunk on memory pressure.");
+			return;
+		}
+
+		long max = pool.getUsage().getMax();
+		if (pool.getCollectionUsageThreshold() == 0) {
+			pool.setCollectionUsageThreshold((long) (max * HIGH));
+		}
+		if (pool.getUsageThreshold() == 0) {
+			pool.setUsageThreshold((long) (max * CRITICAL));
+		}
+
+		NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+		emitter.addNotificationListener(new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				String type = notification.getType();
+				if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+						|| MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+					scheduleCheck(0);
+				}
+			}
+		}, null, null);
+	}
+
+	/**
+	 * @return the governor of this virtual machine
+	 */
+	public static TileMemoryGovernor getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the current pressure level, 0 if the caches may use their full budgets
+	 */
+	public int getPressureLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the highest pressure level
+	 */
+	public int getMaxPressureLevel() {
+		return IMAGE_FRACTIONS.length - 1;
+	}
+
+	/**
+	 * Puts a cache under the control of this governor. The cache is referenced
+	 * weakly. A cache shared by several factories is registered by each of them.
+	 */
+	void register(TileCache cache) {
+		int level;
+		synchronized (caches) {
+			Integer count = caches.get(cache);
+			caches.put(cache, count != null ? count + 1 : 1);
+			level = this.level;
+		}
+		if (level > 0) {
+			cache.setMemoryPressure(IMAGE_FRACTIONS[level], COMPRESSED_FRACTIONS[level]);
+		}
+	}
+
+	/**
+	 * Releases a cache no longer used by a factory. Once no factory uses it,
+	 * the cache is no longer shrunk and gets its full budgets back.
+	 */
+	void unregister(TileCache cache) {
+		synchronized (caches) {
+			Integer count = caches.get(cache);
+			if (count == null) {
+				return;
+			}
+			if (count > 1) {
+				caches.put(cache, count - 1);
+				return;
+			}
+			caches.remove(cache);
+		}
+		cache.setMemoryPressure(1, 1);
+	}
+
+	private synchronized void scheduleCheck(long delay) {
+		if (checkScheduled) {
+			return;
+		}
+		if (checker == null) {
+			checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "tile-memory-governor");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+
+		checkScheduled = true;
+		checker.schedule(new Runnable() {
+			public void run() {
+				synchronized (TileMemoryGovernor.this) {
+					checkScheduled = false;
+				}
+				check();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Moves the pressure level towards the occupancy of the pool after the last
+	 * collection. While there is pressure, the pool is checked periodically, as
+	 * no notification is sent when it recovers.
+	 */
+	private void check() {
+		MemoryUsage usage = pool.getCollectionUsage();
+		if (usage == null || usage.getMax() <= 0) {
+			usage = pool.getUsage();
+		}
+		double occupancy = (double) usage.getUsed() / usage.getMax();
+
+		int newLevel = level;
+		if (occupancy >= CRITICAL) {
+			newLevel = getMaxPressureLevel();
+		} else if (occupancy >= HIGH) {
+			newLevel = Math.min(newLevel + 1, getMaxPressureLevel());
+		} else if (occupancy < LOW) {
+			newLevel = Math.max(newLevel - 1, 0);
+		}
+
+		if (newLevel != level) {
+			LOG.log(Level.INFO, "Tile cache memory pressure changed from " + level + " to " + newLevel
+					+ " at a heap occupancy of " + Math.round(occupancy * 100) + "%.");
+			setLevel(newLevel);
+		}
+
+		if (newLevel > 0) {
+			scheduleCheck(CHECK_INTERVAL);
+		}
+	}
+
+	private void setLevel(int level) {
+		List<TileCache> targets;
+		synchronized (caches) {
+			this.level = level;
+			targets = new ArrayList<TileCache>(caches.keySet());
+		}
+
+		for (TileCache cache : targets) {
+			cache.setMemoryPressure(IMAGE_FRACTIONS[level], COMPRESSED_FRACTIONS[level]);
+		}
+		if (level > 0) {
+			TileRasterPool.getInstance().clear();
+		}
+	}
+
+	/**
+	 * @return the largest heap pool supporting usage thresholds, or null
+	 */
+	private static MemoryPoolMXBean findPool() {
+		MemoryPoolMXBean result = null;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0
+					&& (result == null || pool.getUsage().getMax() > result.getUsage().getMax())) {
+				result = pool;
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,310 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects statistics about the tile pipeline of all tile factories sharing the
+ * same {@link TileFactoryInfo} name. One instance exists per name. It is
+ * registered with the platform MBean server as
+ * <code>org.jdesktop.swingx.mapviewer:type=TileMetrics,name=&lt;info name&gt;</code>.
+ * <p>
+ * Counters are backed by {@link LongAdder}s and histograms by fixed power of two
+ * buckets, so recording a value never blocks and the metrics can be left enabled
+ * in production.
+ */
+public class TileMetrics implements TileMetricsMBean {
+	private static final Logger LOG = Logger.getLogger(TileMetrics.class.getName());
+	private static final String DOMAIN = "org.jdesktop.swingx.mapviewer";
+	private static final ConcurrentMap<String, TileMetrics> registry = new ConcurrentHashMap<String, TileMetrics>();
+
+	private final String name;
+	private final LongAdder imageHits = new LongAdder();
+	private final LongAdder imageMisses = new LongAdder();
+	private final LongAdder imageEvictions = new LongAdder();
+	private final LongAdder byteHits = new LongAdder();
+	private final LongAdder byteMisses = new LongAdder();
+	private final LongAdder byteEvictions = new LongAdder();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger activeLoaders = new AtomicInteger();
+	private final Histogram fetchLatency = new Histogram();
+	private final Histogram decodeLatency = new Histogram();
+	private final Histogram bytesDownloaded = new Histogram();
+
+	private TileMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the metrics for the given name, creating and registering them if necessary.
+	 * @param name the name of the <code>TileFactoryInfo</code>
+	 * @return the metrics
+	 */
+	public static TileMetrics forName(String name) {
+		TileMetrics metrics = registry.get(name);
+		if (metrics == null) {
+			TileMetrics created = new TileMetrics(name);
+			metrics = registry.putIfAbsent(name, created);
+			if (metrics == null) {
+				metrics = created;
+				register(created);
+			}
+		}
+
+		return metrics;
+	}
+
+	private static void register(TileMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=TileMetrics,name=" + ObjectName.quote(metrics.name));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(metrics, objectName);
+			}
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Failed to register tile metrics for " + metrics.name + ".", e);
+		} catch (SecurityException e) {
+			LOG.log(Level.WARNING, "Failed to register tile metrics for " + metrics.name + ".", e);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	void recordImageHit() {
+		imageHits.increment();
+	}
+
+	void recordImageMiss() {
+		imageMisses.increment();
+	}
+
+	void recordImageEvictions(int count) {
+		if (count > 0) {
+			imageEvictions.add(count);
+		}
+	}
+
+	void recordCompressedHit() {
+		byteHits.increment();
+	}
+
+	void recordCompressedMiss() {
+		byteMisses.increment();
+	}
+
+	void recordCompressedEvictions(int count) {
+		if (count > 0) {
+			byteEvictions.add(count);
+		}
+	}
+
+	void recordQueued() {
+		queueDepth.incrementAndGet();
+	}
+
+	void recordDequeued() {
+		queueDepth.decrementAndGet();
+	}
+
+	void recordLoaderStarted() {
+		activeLoaders.incrementAndGet();
+	}
+
+	void recordLoaderFinished() {
+		activeLoaders.decrementAndGet();
+	}
+
+	void recordFetch(long nanos, long bytes) {
+		fetchLatency.record(nanos / 1000);
+		bytesDownloaded.record(bytes);
+	}
+
+	void recordDecode(long nanos) {
+		decodeLatency.record(nanos / 1000);
+	}
+
+	public long getImageCacheHits() {
+		return imageHits.sum();
+	}
+
+	public long getImageCacheMisses() {
+		return imageMisses.sum();
+	}
+
+	public long getImageCacheEvictions() {
+		return imageEvictions.sum();
+	}
+
+	public long getCompressedCacheHits() {
+		return byteHits.sum();
+	}
+
+	public long getCompressedCacheMisses() {
+		return byteMisses.sum();
+	}
+
+	public long getCompressedCacheEvictions() {
+		return byteEvictions.sum();
+	}
+
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public int getActiveLoaders() {
+		return activeLoaders.get();
+	}
+
+	public long getFetchCount() {
+		return fetchLatency.getCount();
+	}
+
+	public double getFetchLatencyMean() {
+		return fetchLatency.getMean() / 1000;
+	}
+
+	public double getFetchLatency95thPercentile() {
+		return fetchLatency.getPercentile(0.95) / 1000.0;
+	}
+
+	public double getFetchLatency99thPercentile() {
+		return fetchLatency.getPercentile(0.99) / 1000.0;
+	}
+
+	public double getFetchLatencyMax() {
+		return fetchLatency.getMax() / 1000.0;
+	}
+
+	public long getDecodeCount() {
+		return decodeLatency.getCount();
+	}
+
+	public double getDecodeLatencyMean() {
+		return decodeLatency.getMean() / 1000;
+	}
+
+	public double getDecodeLatency95thPercentile() {
+		return decodeLatency.getPercentile(0.95) / 1000.0;
+	}
+
+	public double getDecodeLatency99thPercentile() {
+		return decodeLatency.getPercentile(0.99) / 1000.0;
+	}
+
+	public double getDecodeLatencyMax() {
+		return decodeLatency.getMax() / 1000.0;
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded.getSum();
+	}
+
+	public double getBytesPerFetchMean() {
+		return bytesDownloaded.getMean();
+	}
+
+	public long getBytesPerFetch95thPercentile() {
+		return bytesDownloaded.getPercentile(0.95);
+	}
+
+	public long getBytesPerFetchMax() {
+		return bytesDownloaded.getMax();
+	}
+
+	public void reset() {
+		imageHits.reset();
+		imageMisses.reset();
+		imageEvictions.reset();
+		byteHits.reset();
+		byteMisses.reset();
+		byteEvictions.reset();
+		fetchLatency.reset();
+		decodeLatency.reset();
+		bytesDownloaded.reset();
+	}
+
+	/**
+	 * A histogram of non-negative values. Bucket <i>i</i> counts the values
+	 * below 2<sup>i</sup>, so percentiles are reported as the upper bound of the
+	 * bucket they fall into and are accurate within a factor of two.
+	 */
+	private static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		long getSum() {
+			return sum.sum();
+		}
+
+		long getMax() {
+			return max.get();
+		}
+
+		double getMean() {
+			long n = count.sum();
+			return n > 0 ? (double) sum.sum() / n : 0;
+		}
+
+		long getPercentile(double p) {
+			long total = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				total += buckets.get(i);
+			}
+
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+				}
+			}
+
+			return 0;
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			count.reset();
+			sum.reset();
+			max.reset();
+		}
+	}
+}
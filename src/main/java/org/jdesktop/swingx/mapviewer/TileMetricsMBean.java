@@ -0,0 +1,60 @@
+package org.jdesktop.swingx.mapviewer;
+
+/**
+ * The management interface of {@link TileMetrics}. Latencies are reported in
+ * milliseconds, sizes in bytes.
+ */
+public interface TileMetricsMBean {
+
+	public String getName();
+
+	public long getImageCacheHits();
+
+	public long getImageCacheMisses();
+
+	public long getImageCacheEvictions();
+
+	public long getCompressedCacheHits();
+
+	public long getCompressedCacheMisses();
+
+	public long getCompressedCacheEvictions();
+
+	public int getQueueDepth();
+
+	public int getActiveLoaders();
+
+	public long getFetchCount();
+
+	public double getFetchLatencyMean();
+
+	public double getFetchLatency95thPercentile();
+
+	public double getFetchLatency99thPercentile();
+
+	public double getFetchLatencyMax();
+
+	public long getDecodeCount();
+
+	public double getDecodeLatencyMean();
+
+	public double getDecodeLatency95thPercentile();
+
+	public double getDecodeLatency99thPercentile();
+
+	public double getDecodeLatencyMax();
+
+	public long getBytesDownloaded();
+
+	public double getBytesPerFetchMean();
+
+	public long getBytesPerFetch95thPercentile();
+
+	public long getBytesPerFetchMax();
+
+	/**
+	 * Resets all counters and histograms. The queue depth and the number of
+	 * active loaders are not affected.
+	 */
+	public void reset();
+}
@@ -0,0 +1,252 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Loads tiles that are likely to be shown soon before they are visible. Whenever
+ * a viewport of its factory changes, the prefetcher requests, on a background
+ * thread of the factory,
+ * <ul>
+ * <li>a ring of tiles around the viewport,</li>
+ * <li>additional tiles in the direction the viewport is panned, and</li>
+ * <li>the tiles covering the viewport one zoom level in and out.</li>
+ * </ul>
+ * Prefetched tiles are loaded with {@link Tile.Priority#Low}, so all visible
+ * tiles are loaded before them. In addition, at most
+ * {@link #getMaxConcurrentLoads()} prefetched tiles are loaded at the same time,
+ * and downloads are limited to {@link #getBandwidth()} bytes per second, so
+ * prefetching never takes threads or bandwidth from visible tiles.
+ * <p>
+ * Install it on a factory using
+ * {@link AbstractTileFactory#setTilePrefetcher(TilePrefetcher)}.
+ */
+public class TilePrefetcher {
+	private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+	private volatile int ringSize = 1;
+	private volatile int panLookahead = 2;
+	private volatile boolean adjacentZoomLevels = true;
+	private volatile int maxConcurrentLoads = 1;
+	private long bandwidth = 256 * 1024;
+
+	private final Map<Object, double[]> lastCenters = new WeakHashMap<Object, double[]>();
+	private double tokens = bandwidth;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @return the number of tiles prefetched around each side of the viewport
+	 */
+	public int getRingSize() {
+		return ringSize;
+	}
+
+	/**
+	 * Sets the number of tiles prefetched around each side of the viewport.
+	 * @param ringSize the ring size, 0 to disable the ring
+	 */
+	public void setRingSize(int ringSize) {
+		if (ringSize < 0) {
+			throw new IllegalArgumentException("ringSize invalid: " + ringSize + ". The ring size must not be negative.");
+		}
+		this.ringSize = ringSize;
+	}
+
+	/**
+	 * @return the number of tiles prefetched beyond the ring in the direction the viewport is panned
+	 */
+	public int getPanLookahead() {
+		return panLookahead;
+	}
+
+	/**
+	 * Sets the number of tiles prefetched beyond the ring in the direction the
+	 * viewport is panned.
+	 * @param panLookahead the number of tiles, 0 to ignore the pan direction
+	 */
+	public void setPanLookahead(int panLookahead) {
+		if (panLookahead < 0) {
+			throw new IllegalArgumentException("panLookahead invalid: " + panLookahead + ". The lookahead must not be negative.");
+		}
+		this.panLookahead = panLookahead;
+	}
+
+	/**
+	 * @return true if the tiles covering the viewport one zoom level in and out are prefetched
+	 */
+	public boolean isAdjacentZoomLevels() {
+		return adjacentZoomLevels;
+	}
+
+	/**
+	 * Sets whether the tiles covering the viewport one zoom level in and out are prefetched.
+	 * @param adjacentZoomLevels true to prefetch the parent and child tiles
+	 */
+	public void setAdjacentZoomLevels(boolean adjacentZoomLevels) {
+		this.adjacentZoomLevels = adjacentZoomLevels;
+	}
+
+	/**
+	 * @return the maximum number of prefetched tiles loaded at the same time
+	 */
+	public int getMaxConcurrentLoads() {
+		return maxConcurrentLoads;
+	}
+
+	/**
+	 * Sets the maximum number of prefetched tiles loaded at the same time. This
+	 * should be lower than the thread pool size of the factory, so that threads
+	 * are left for visible tiles.
+	 * @param maxConcurrentLoads the maximum number of concurrent loads
+	 */
+	public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+		if (maxConcurrentLoads <= 0) {
+			throw new IllegalArgumentException("maxConcurrentLoads invalid: " + maxConcurrentLoads + ". The number of loads must be greater than 0.");
+		}
+		this.maxConcurrentLoads = maxConcurrentLoads;
+	}
+
+	/**
+	 * @return the number of bytes per second prefetching may download, or 0 if it is not limited
+	 */
+	public synchronized long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Sets the number of bytes per second prefetching may download. Bursts of up
+	 * to one second worth of bandwidth are allowed.
+	 * @param bandwidth the bandwidth in bytes per second, 0 to not limit it
+	 */
+	public synchronized void setBandwidth(long bandwidth) {
+		if (bandwidth < 0) {
+			throw new IllegalArgumentException("bandwidth invalid: " + bandwidth + ". The bandwidth must not be negative.");
+		}
+		this.bandwidth = bandwidth;
+		tokens = Math.min(tokens, bandwidth);
+	}
+
+	/**
+	 * The number of tiles around the viewport in which prefetched tiles are still wanted.
+	 */
+	int getMargin() {
+		return ringSize + panLookahead;
+	}
+
+	/**
+	 * The number of zoom levels around the viewport in which prefetched tiles are still wanted.
+	 */
+	int getZoomRange() {
+		return adjacentZoomLevels ? 1 : 0;
+	}
+
+	/**
+	 * Requests the tiles to prefetch for the given viewport. Called by the
+	 * factory on its timer thread, never while painting.
+	 */
+	void prefetch(AbstractTileFactory factory, Object owner, int zoom, Rectangle viewportBounds) {
+		int tileSize = factory.getTileSize(zoom);
+		double centerX = viewportBounds.getCenterX() / tileSize;
+		double centerY = viewportBounds.getCenterY() / tileSize;
+
+		int panX = 0;
+		int panY = 0;
+		synchronized (lastCenters) {
+			double[] last = lastCenters.put(owner, new double[] { zoom, centerX, centerY });
+			if (last != null && last[0] == zoom) {
+				panX = (int) Math.signum(centerX - last[1]);
+				panY = (int) Math.signum(centerY - last[2]);
+			}
+		}
+
+		int x0 = (int) Math.floor(viewportBounds.getMinX() / tileSize);
+		int y0 = (int) Math.floor(viewportBounds.getMinY() / tileSize);
+		int x1 = (int) Math.floor((viewportBounds.getMaxX() - 1) / tileSize);
+		int y1 = (int) Math.floor((viewportBounds.getMaxY() - 1) / tileSize);
+
+		int ring = ringSize;
+		int lookahead = panLookahead;
+		request(factory, zoom,
+				x0 - ring - (panX < 0 ? lookahead : 0), y0 - ring - (panY < 0 ? lookahead : 0),
+				x1 + ring + (panX > 0 ? lookahead : 0), y1 + ring + (panY > 0 ? lookahead : 0),
+				x0, y0, x1, y1);
+
+		if (adjacentZoomLevels) {
+			TileFactoryInfo info = factory.getInfo();
+			double width = factory.getMapSize(zoom).getWidth();
+			for (int z = zoom - 1; z <= zoom + 1; z += 2) {
+				if (z < info.getMinimumZoomLevel() || z > info.getMaximumZoomLevel()) {
+					continue;
+				}
+
+				// the viewport in tiles of the other zoom level
+				double scale = factory.getMapSize(z).getWidth() / width;
+				request(factory, z,
+						(int) Math.floor(x0 * scale), (int) Math.floor(y0 * scale),
+						(int) Math.floor((x1 + 1) * scale - 1e-9), (int) Math.floor((y1 + 1) * scale - 1e-9),
+						1, 1, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Requests the tiles of the given range except those of the excluded range.
+	 */
+	private void request(AbstractTileFactory factory, int zoom, int minX, int minY, int maxX, int maxY,
+			int excludedMinX, int excludedMinY, int excludedMaxX, int excludedMaxY) {
+		Dimension mapSize = factory.getMapSize(zoom);
+		minY = Math.max(minY, 0);
+		maxY = Math.min(maxY, mapSize.height - 1);
+
+		// do not request the same tile twice if the range wraps around the map
+		if (maxX - minX + 1 > mapSize.width) {
+			maxX = minX + mapSize.width - 1;
+		}
+
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				if (x < excludedMinX || x > excludedMaxX || y < excludedMinY || y > excludedMaxY) {
+					factory.prefetch(x, y, zoom);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if prefetching may download more bytes now
+	 */
+	synchronized boolean hasBandwidth() {
+		refill();
+		return bandwidth == 0 || tokens > 0;
+	}
+
+	/**
+	 * @return the number of nanoseconds until prefetching may download more bytes
+	 */
+	synchronized long getDelay() {
+		refill();
+		if (bandwidth == 0 || tokens > 0) {
+			return 0;
+		}
+		return (long) Math.ceil(-tokens * NANOS_PER_SECOND / bandwidth);
+	}
+
+	/**
+	 * Charges downloaded bytes to the bandwidth budget. The budget may become
+	 * negative, the debt is paid off before the next download.
+	 */
+	synchronized void consume(long bytes) {
+		refill();
+		if (bandwidth > 0) {
+			tokens -= bytes;
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(bandwidth, tokens + (double) (now - lastRefill) * bandwidth / NANOS_PER_SECOND);
+		lastRefill = now;
+	}
+}
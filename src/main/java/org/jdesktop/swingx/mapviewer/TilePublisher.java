@@ -0,0 +1,95 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Hands loaded tile images from the loader threads to the event dispatch
+ * thread. Loader threads only add to a lock-free queue and never wait for the
+ * EDT. The EDT drains the queue in batches, at most once per frame, so that
+ * the repaints requested by all tiles of a batch are coalesced into a single
+ * paint.
+ */
+final class TilePublisher {
+	// the minimum time between two batches, about one frame at 60 Hz
+	private static final int FRAME_MILLIS = 16;
+
+	private static final ConcurrentLinkedQueue<Loaded> queue = new ConcurrentLinkedQueue<Loaded>();
+	private static final AtomicBoolean scheduled = new AtomicBoolean();
+	private static final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+	private static long lastDrain;
+	private static Timer timer;
+
+	private TilePublisher() {
+	}
+
+	/**
+	 * Publishes the image of a tile. On the EDT the image is set, the tile is
+	 * marked as loaded and its loading flag is cleared. The queue holds the
+	 * image strongly and pins it in the {@link TileRasterPool} until then.
+	 */
+	static void publish(Tile tile, BufferedImage image) {
+		TileRasterPool.getInstance().pin(image);
+		queue.add(new Loaded(tile, image));
+		if (scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(drain);
+		}
+	}
+
+	private static void drain() {
+		long now = System.nanoTime();
+		long wait = FRAME_MILLIS - (now - lastDrain) / (1000 * 1000);
+		if (wait > 0) {
+			// the last batch was less than a frame ago, collect some more tiles
+			if (timer == null) {
+				timer = new Timer(FRAME_MILLIS, new ActionListener() {
+					public void actionPerformed(ActionEvent e) {
+						drain();
+					}
+				});
+				timer.setRepeats(false);
+			}
+			timer.setInitialDelay((int) wait);
+			timer.restart();
+			return;
+		}
+
+		lastDrain = now;
+		// tiles published from now on need another batch
+		scheduled.set(false);
+		Loaded loaded;
+		TileRasterPool pool = TileRasterPool.getInstance();
+		while ((loaded = queue.poll()) != null) {
+			Tile tile = loaded.tile;
+			pool.claim(loaded.image, tile);
+			if (tile.isLoaded()) {
+				tile.updateImage(loaded.image);
+			} else {
+				tile.setImage(loaded.image);
+				tile.setLoaded(true);
+			}
+			tile.setLoading(false);
+			pool.unpin(loaded.image);
+		}
+	}
+
+	private static final class Loaded {
+		final Tile tile;
+		final BufferedImage image;
+
+		Loaded(Tile tile, BufferedImage image) {
+			this.tile = tile;
+			this.image = image;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.geom.Point2D;
+
+import org.jdesktop.swingx.mapviewer.util.GeoUtil;
+
+/**
+ * The tiles covering a bounding box over a range of zoom levels. The tiles are
+ * enumerated zoom level by zoom level without being materialized, and the
+ * enumeration may be shared by several threads. Bounds crossing the
+ * antimeridian wrap around the map.
+ */
+public final class TileRange {
+	private final TileFactoryInfo info;
+	private final int minZoom;
+	private final int maxZoom;
+	private final GeoPosition northWest;
+	private final GeoPosition southEast;
+
+	private int zoom;
+	private int[] bounds;
+	private boolean first;
+	private int x;
+	private int y;
+
+	/**
+	 * Creates a new range. Zoom levels not supported by the info are ignored.
+	 * @param info the tile source
+	 * @param geoBounds the area to cover
+	 * @param minZoom the lowest zoom level
+	 * @param maxZoom the highest zoom level
+	 */
+	public TileRange(TileFactoryInfo info, GeoBounds geoBounds, int minZoom, int maxZoom) {
+		if (minZoom > maxZoom) {
+			throw new IllegalArgumentException("minZoom invalid: " + minZoom + ". The minimum zoom level must not be greater than the maximum zoom level.");
+		}
+
+		this.info = info;
+		this.minZoom = Math.max(minZoom, info.getMinimumZoomLevel());
+		this.maxZoom = Math.min(maxZoom, info.getMaximumZoomLevel());
+		northWest = geoBounds.getNorthWest();
+		southEast = geoBounds.getSouthEast();
+		zoom = this.minZoom - 1;
+	}
+
+	/**
+	 * @return minX, minY, maxX and maxY in tiles. If minX is greater than maxX,
+	 *         the range crosses the antimeridian and wraps around the map.
+	 */
+	private int[] bounds(int zoom) {
+		int tileSize = info.getTileSize(zoom);
+		int width = info.getMapWidthInTilesAtZoom(zoom);
+		Point2D nw = GeoUtil.getBitmapCoordinate(northWest, zoom, info);
+		Point2D se = GeoUtil.getBitmapCoordinate(southEast, zoom, info);
+		return new int[] {
+				clamp((int) Math.floor(nw.getX() / tileSize), width),
+				clamp((int) Math.floor(nw.getY() / tileSize), width),
+				clamp((int) Math.floor(se.getX() / tileSize), width),
+				clamp((int) Math.floor(se.getY() / tileSize), width) };
+	}
+
+	private static int clamp(int value, int width) {
+		return Math.max(0, Math.min(width - 1, value));
+	}
+
+	/**
+	 * @return the number of tiles in this range
+	 */
+	public long count() {
+		long count = 0;
+		for (int z = minZoom; z <= maxZoom; z++) {
+			int[] b = bounds(z);
+			long columns = b[0] <= b[2] ? b[2] - b[0] + 1 : info.getMapWidthInTilesAtZoom(z) - b[0] + b[2] + 1;
+			count += columns * (b[3] - b[1] + 1);
+		}
+		return count;
+	}
+
+	/**
+	 * Moves to the next tile of the range.
+	 * @param tile receives x, y and zoom of the next tile
+	 * @return false if all tiles have been enumerated
+	 */
+	public synchronized boolean next(int[] tile) {
+		while (true) {
+			if (bounds != null) {
+				if (first) {
+					first = false;
+					x = bounds[0];
+				} else if (x != bounds[2]) {
+					x = (x + 1) % info.getMapWidthInTilesAtZoom(zoom);
+				} else if (y < bounds[3]) {
+					x = bounds[0];
+					y++;
+				} else {
+					bounds = null;
+					continue;
+				}
+
+				if (GeoUtil.isValidTile(x, y, zoom, info)) {
+					tile[0] = x;
+					tile[1] = y;
+					tile[2] = zoom;
+					return true;
+				}
+				continue;
+			}
+
+			if (++zoom > maxZoom) {
+				return false;
+			}
+
+			bounds = bounds(zoom);
+			first = true;
+			y = bounds[1];
+		}
+	}
+}
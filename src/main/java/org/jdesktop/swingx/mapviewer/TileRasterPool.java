@@ -0,0 +1,254 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Recycles the images of evicted tiles, so that decoding a tile of the same
+ * size and pixel format does not allocate a new raster.
+ * <p>
+ * An image evicted from a {@link TileCache} may still be shown by its tile.
+ * Evicted images are therefore handed to the event dispatch thread, where the
+ * tiles are painted. An image is shared by several tiles if factories share a
+ * cache, so every tile an image has been published to is tracked. An image
+ * still held by any visible (pinned) tile is not recycled. The other tiles
+ * holding it drop the image, as if it had been collected, and reload it from
+ * the compressed cache when they are shown again.
+ * Only images of tiles that have been published to the EDT are recycled,
+ * images nobody has seen yet are left to the garbage collector.
+ * <p>
+ * A cache pins every image it hands out, and an image stays pinned until it
+ * has been published to its tile. A pinned image is only recycled once the
+ * last pin has been removed.
+ * <p>
+ * Only RGB and ARGB images are pooled. Indexed images each have their own
+ * palette and are small anyway.
+ */
+public final class TileRasterPool {
+	private static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+	// every cache hit pins an image, so the pins are split into independently locked stripes
+	private static final int PIN_STRIPES = 16;
+	private static final TileRasterPool INSTANCE = new TileRasterPool();
+
+	private final Map<Long, ArrayDeque<BufferedImage>> free = new HashMap<Long, ArrayDeque<BufferedImage>>();
+	private long size;
+	private long maxSize = DEFAULT_MAX_SIZE;
+
+	// the tiles each published image has been published to, only accessed on the EDT
+	private final Map<BufferedImage, Tile[]> owners = new WeakHashMap<BufferedImage, Tile[]>();
+	private final ConcurrentLinkedQueue<BufferedImage> released = new ConcurrentLinkedQueue<BufferedImage>();
+	private final PinStripe[] pins = new PinStripe[PIN_STRIPES];
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable recycle = new Runnable() {
+		public void run() {
+			recycle();
+		}
+	};
+
+	private TileRasterPool() {
+		for (int i = 0; i < pins.length; i++) {
+			pins[i] = new PinStripe();
+		}
+	}
+
+	/**
+	 * @return the pool of this virtual machine
+	 */
+	public static TileRasterPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the maximum number of bytes occupied by pooled images
+	 */
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of bytes occupied by pooled images.
+	 * @param maxSize the budget of the pool in bytes, 0 to disable pooling
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize invalid: " + maxSize + ". The maximum size must not be negative.");
+		}
+		this.maxSize = maxSize;
+		if (size > maxSize) {
+			clear();
+		}
+	}
+
+	/**
+	 * @return the number of bytes currently occupied by pooled images
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Drops all pooled images.
+	 */
+	public synchronized void clear() {
+		free.clear();
+		size = 0;
+	}
+
+	/**
+	 * Takes an image from the pool. Its pixels are undefined.
+	 * @return a recycled image of the given size and type, or null if there is none
+	 */
+	synchronized BufferedImage acquire(int width, int height, int type) {
+		ArrayDeque<BufferedImage> images = free.get(key(width, height, type));
+		BufferedImage img = images != null ? images.poll() : null;
+		if (img != null) {
+			size -= TileCache.getMemorySize(img);
+		}
+		return img;
+	}
+
+	/**
+	 * Records that an image is shown by a tile. Must be called on the EDT.
+	 */
+	void claim(BufferedImage img, Tile tile) {
+		Tile[] tiles = owners.get(img);
+		if (tiles == null) {
+			owners.put(img, new Tile[] { tile });
+			return;
+		}
+
+		for (Tile owner : tiles) {
+			if (owner == tile) {
+				return;
+			}
+		}
+		tiles = Arrays.copyOf(tiles, tiles.length + 1);
+		tiles[tiles.length - 1] = tile;
+		owners.put(img, tiles);
+	}
+
+	/**
+	 * Prevents an image from being recycled until it is unpinned. May be called
+	 * from any thread.
+	 */
+	void pin(BufferedImage img) {
+		PinStripe stripe = stripeFor(img);
+		synchronized (stripe) {
+			int[] count = stripe.counts.get(img);
+			if (count == null) {
+				stripe.counts.put(img, new int[] { 1 });
+			} else {
+				count[0]++;
+			}
+		}
+	}
+
+	/**
+	 * Removes a pin added by {@link #pin(BufferedImage)}. May be called from any
+	 * thread. An image released while it was pinned is recycled once its last
+	 * pin has been removed.
+	 */
+	void unpin(BufferedImage img) {
+		PinStripe stripe = stripeFor(img);
+		synchronized (stripe) {
+			int[] count = stripe.counts.get(img);
+			if (count == null || --count[0] > 0) {
+				return;
+			}
+			stripe.counts.remove(img);
+			if (!stripe.deferred.remove(img)) {
+				return;
+			}
+		}
+		release(img);
+	}
+
+	/**
+	 * Hands an image evicted from a cache to the pool. May be called from any
+	 * thread, the image is recycled on the EDT.
+	 */
+	void release(BufferedImage img) {
+		// only the formats the decoder recycles
+		if (img.getType() != BufferedImage.TYPE_INT_RGB && img.getType() != BufferedImage.TYPE_INT_ARGB) {
+			return;
+		}
+
+		released.add(img);
+		if (scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(recycle);
+		}
+	}
+
+	private void recycle() {
+		scheduled.set(false);
+		BufferedImage img;
+		while ((img = released.poll()) != null) {
+			PinStripe stripe = stripeFor(img);
+			synchronized (stripe) {
+				if (stripe.counts.containsKey(img)) {
+					// still on its way to a tile, recycled when it is unpinned
+					stripe.deferred.add(img);
+					continue;
+				}
+			}
+
+			Tile[] tiles = owners.remove(img);
+			if (tiles == null) {
+				// not published yet
+				continue;
+			}
+
+			boolean released = true;
+			for (Tile owner : tiles) {
+				released &= owner.release(img);
+			}
+			if (released) {
+				// no tile shows the image any more
+				offer(img);
+			}
+		}
+	}
+
+	private synchronized void offer(BufferedImage img) {
+		long imageSize = TileCache.getMemorySize(img);
+		if (size + imageSize > maxSize) {
+			return;
+		}
+
+		Long key = key(img.getWidth(), img.getHeight(), img.getType());
+		ArrayDeque<BufferedImage> images = free.get(key);
+		if (images == null) {
+			images = new ArrayDeque<BufferedImage>();
+			free.put(key, images);
+		}
+		images.add(img);
+		size += imageSize;
+	}
+
+	private static Long key(int width, int height, int type) {
+		return Long.valueOf((long) type << 48 | (long) width << 24 | height);
+	}
+
+	private PinStripe stripeFor(BufferedImage img) {
+		int h = System.identityHashCode(img);
+		h ^= (h >>> 16);
+		return pins[h & (PIN_STRIPES - 1)];
+	}
+
+	private static final class PinStripe {
+		// the number of pins of each pinned image
+		final Map<BufferedImage, int[]> counts = new WeakHashMap<BufferedImage, int[]>();
+		// the released images waiting for their pins to be removed
+		final Set<BufferedImage> deferred = Collections.newSetFromMap(new WeakHashMap<BufferedImage, Boolean>());
+	}
+}
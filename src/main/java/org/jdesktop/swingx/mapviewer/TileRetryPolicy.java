@@ -0,0 +1,152 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Controls how a tile factory reacts to tiles that cannot be loaded.
+ * <ul>
+ * <li>Failed loads are retried with an exponentially growing, jittered delay,
+ * so that clients do not retry in lockstep. After
+ * {@link #getMaxAttempts()} failures the tile is given up, and it is only
+ * tried again once per {@link #getMaxBackoff()} while it is visible.</li>
+ * <li>Tiles the server does not have (<code>404 Not Found</code>,
+ * <code>410 Gone</code> or an empty image) are remembered for
+ * {@link #getNegativeCacheTtl()} and not requested again in the meantime.</li>
+ * <li>After {@link #getFailureThreshold()} consecutive failures of a host, no
+ * further requests are sent to it. Every {@link #getProbeInterval()} a single
+ * request probes whether the host has recovered.</li>
+ * </ul>
+ * Install it on a factory using
+ * {@link AbstractTileFactory#setRetryPolicy(TileRetryPolicy)}.
+ */
+public class TileRetryPolicy {
+	private volatile int maxAttempts = 4;
+	private volatile long initialBackoff = 1000;
+	private volatile long maxBackoff = 5 * 60 * 1000;
+	private volatile long negativeCacheTtl = 10 * 60 * 1000;
+	private volatile int failureThreshold = 8;
+	private volatile long probeInterval = 30 * 1000;
+
+	/**
+	 * @return the number of failed loads after which a tile is given up
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the number of failed loads after which a tile is given up.
+	 * @param maxAttempts the number of attempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts invalid: " + maxAttempts + ". The number of attempts must be greater than 0.");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the delay in milliseconds before the first retry
+	 */
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	/**
+	 * Sets the delay before the first retry. The delay doubles with every further failure.
+	 * @param initialBackoff the delay in milliseconds
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		if (initialBackoff <= 0) {
+			throw new IllegalArgumentException("initialBackoff invalid: " + initialBackoff + ". The delay must be greater than 0.");
+		}
+		this.initialBackoff = initialBackoff;
+	}
+
+	/**
+	 * @return the maximum delay in milliseconds between two attempts to load a tile
+	 */
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Sets the maximum delay between two attempts to load a tile.
+	 * @param maxBackoff the delay in milliseconds
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		if (maxBackoff <= 0) {
+			throw new IllegalArgumentException("maxBackoff invalid: " + maxBackoff + ". The delay must be greater than 0.");
+		}
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * @return the time in milliseconds missing tiles are remembered
+	 */
+	public long getNegativeCacheTtl() {
+		return negativeCacheTtl;
+	}
+
+	/**
+	 * Sets the time missing tiles are remembered.
+	 * @param negativeCacheTtl the time in milliseconds, 0 to not remember missing tiles
+	 */
+	public void setNegativeCacheTtl(long negativeCacheTtl) {
+		if (negativeCacheTtl < 0) {
+			throw new IllegalArgumentException("negativeCacheTtl invalid: " + negativeCacheTtl + ". The time must not be negative.");
+		}
+		this.negativeCacheTtl = negativeCacheTtl;
+	}
+
+	/**
+	 * @return the number of consecutive failures after which requests to a host are stopped
+	 */
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures after which requests to a host are stopped.
+	 * @param failureThreshold the number of failures
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		if (failureThreshold <= 0) {
+			throw new IllegalArgumentException("failureThreshold invalid: " + failureThreshold + ". The threshold must be greater than 0.");
+		}
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @return the time in milliseconds between two probes of a failing host
+	 */
+	public long getProbeInterval() {
+		return probeInterval;
+	}
+
+	/**
+	 * Sets the time between two probes of a failing host.
+	 * @param probeInterval the time in milliseconds
+	 */
+	public void setProbeInterval(long probeInterval) {
+		if (probeInterval <= 0) {
+			throw new IllegalArgumentException("probeInterval invalid: " + probeInterval + ". The interval must be greater than 0.");
+		}
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Computes the delay before the next attempt: the exponential backoff with
+	 * a random jitter between half and all of it.
+	 * @param failures the number of failed attempts so far
+	 * @return the delay in milliseconds
+	 */
+	long getBackoff(int failures) {
+		long delay = Math.min(maxBackoff, initialBackoff << Math.min(failures - 1, 30));
+		return jitter(delay);
+	}
+
+	static long jitter(long delay) {
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
@@ -0,0 +1,359 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The queue of tiles waiting to be loaded by one tile factory. Tiles are
+ * ordered by their distance from the center of the viewports showing the
+ * factory's map, so the tiles in the middle of the screen are loaded first.
+ * Tiles of a zoom level no viewport shows are loaded after the tiles of the
+ * visible zoom level, and tiles of low priority after all others.
+ * <p>
+ * The queue is a binary heap that keeps the position of each tile in the tile
+ * itself, so changing the priority of a queued tile takes O(log n). When a
+ * viewport moves, all priorities are recomputed and the heap is rebuilt in O(n).
+ * <p>
+ * A tile is wanted as long as it lies within one tile of a viewport at the zoom
+ * level of the viewport. Tiles of low priority are prefetched, they are wanted
+ * within the margin and zoom range of the {@link TilePrefetcher}. Queued tiles
+ * that are no longer wanted can be removed using {@link #removeUnwanted()}.
+ * While no viewport is known, all tiles are wanted.
+ */
+final class TileScheduler {
+	// the number of tiles a zoom level mismatch is worth
+	private static final double ZOOM_PENALTY = 8;
+	// the number of tiles around a viewport that are still wanted
+	private static final double MARGIN = 1;
+
+	private final TileFactory factory;
+	private final Map<Object, Viewport> viewports = new WeakHashMap<Object, Viewport>();
+	private Tile[] heap = new Tile[16];
+	private int size;
+	private long sequence;
+	private TilePrefetcher prefetcher;
+
+	TileScheduler(TileFactory factory) {
+		this.factory = factory;
+	}
+
+	synchronized void offer(Tile tile) {
+		if (tile.queueIndex >= 0) {
+			update(tile);
+			return;
+		}
+
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+
+		tile.queuePriority = priorityOf(tile);
+		tile.queueSequence = sequence++;
+		tile.queueIndex = size;
+		heap[size++] = tile;
+		siftUp(tile.queueIndex);
+	}
+
+	/**
+	 * Removes the first tile from the queue.
+	 * @param includeLow false to only return tiles of high priority
+	 * @return the tile or null if there is none
+	 */
+	synchronized Tile poll(boolean includeLow) {
+		if (size == 0 || !includeLow && heap[0].getPriority() == Tile.Priority.Low) {
+			return null;
+		}
+
+		Tile tile = heap[0];
+		removeAt(0);
+		return tile;
+	}
+
+	/**
+	 * @return true if {@link #poll(boolean)} would return a tile
+	 */
+	synchronized boolean hasNext(boolean includeLow) {
+		return size > 0 && (includeLow || heap[0].getPriority() != Tile.Priority.Low);
+	}
+
+	synchronized boolean remove(Tile tile) {
+		int index = tile.queueIndex;
+		if (index < 0 || index >= size || heap[index] != tile) {
+			return false;
+		}
+
+		removeAt(index);
+		return true;
+	}
+
+	synchronized boolean contains(Tile tile) {
+		int index = tile.queueIndex;
+		return index >= 0 && index < size && heap[index] == tile;
+	}
+
+	/**
+	 * Recomputes the priority of a queued tile, e.g. after its
+	 * {@link Tile.Priority} has been changed.
+	 */
+	synchronized void update(Tile tile) {
+		if (!contains(tile)) {
+			return;
+		}
+
+		tile.queuePriority = priorityOf(tile);
+		siftUp(tile.queueIndex);
+		siftDown(tile.queueIndex);
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized void setPrefetcher(TilePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * @return true if the viewport has changed
+	 */
+	synchronized boolean setViewport(Object owner, int zoom, Rectangle viewportBounds) {
+		Viewport viewport = new Viewport(zoom, viewportBounds, factory.getTileSize(zoom), factory.getMapSize(zoom));
+		if (viewport.equals(viewports.get(owner))) {
+			return false;
+		}
+
+		viewports.put(owner, viewport);
+		reprioritize();
+		return true;
+	}
+
+	synchronized void removeViewport(Object owner) {
+		if (viewports.remove(owner) != null) {
+			reprioritize();
+		}
+	}
+
+	synchronized boolean isWanted(Tile tile) {
+		if (viewports.isEmpty()) {
+			return true;
+		}
+
+		double margin = MARGIN;
+		int zoomRange = 0;
+		if (tile.getPriority() == Tile.Priority.Low && prefetcher != null) {
+			margin += prefetcher.getMargin();
+			zoomRange = prefetcher.getZoomRange();
+		}
+
+		Dimension tileMapSize = factory.getMapSize(tile.getZoom());
+		for (Viewport viewport : viewports.values()) {
+			if (Math.abs(tile.getZoom() - viewport.zoom) > zoomRange) {
+				continue;
+			}
+
+			// compare the tile and the viewport at the zoom level of the viewport
+			double scale = viewport.mapSize.getWidth() / tileMapSize.getWidth();
+			double half = 0.5 * scale;
+			if (distanceX((tile.getX() + 0.5) * scale, viewport) <= viewport.halfWidth + half + margin
+					&& Math.abs((tile.getY() + 0.5) * scale - viewport.centerY) <= viewport.halfHeight + half + margin) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if the tile is shown by a viewport at its zoom level right now
+	 */
+	synchronized boolean isVisible(Tile tile) {
+		for (Viewport viewport : viewports.values()) {
+			if (tile.getZoom() == viewport.zoom
+					&& distanceX(tile.getX() + 0.5, viewport) < viewport.halfWidth + 0.5
+					&& Math.abs(tile.getY() + 0.5 - viewport.centerY) < viewport.halfHeight + 0.5) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes all queued tiles that are not wanted by any viewport.
+	 * @return the removed tiles
+	 */
+	synchronized List<Tile> removeUnwanted() {
+		List<Tile> removed = new ArrayList<Tile>();
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Tile tile = heap[i];
+			if (isWanted(tile)) {
+				heap[kept] = tile;
+				tile.queueIndex = kept++;
+			} else {
+				tile.queueIndex = -1;
+				removed.add(tile);
+			}
+		}
+
+		if (!removed.isEmpty()) {
+			Arrays.fill(heap, kept, size, null);
+			size = kept;
+			heapify();
+		}
+
+		return removed;
+	}
+
+	private void reprioritize() {
+		for (int i = 0; i < size; i++) {
+			heap[i].queuePriority = priorityOf(heap[i]);
+		}
+
+		heapify();
+	}
+
+	private void heapify() {
+		for (int i = (size >>> 1) - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	private double priorityOf(Tile tile) {
+		if (viewports.isEmpty()) {
+			return 0;
+		}
+
+		double priority = Double.MAX_VALUE;
+		Dimension tileMapSize = factory.getMapSize(tile.getZoom());
+		for (Viewport viewport : viewports.values()) {
+			// project the center of the tile onto the zoom level of the viewport
+			double scale = viewport.mapSize.getWidth() / tileMapSize.getWidth();
+			double dx = distanceX((tile.getX() + 0.5) * scale, viewport);
+			double dy = Math.abs((tile.getY() + 0.5) * scale - viewport.centerY);
+			double distance = Math.sqrt(dx * dx + dy * dy) + ZOOM_PENALTY * Math.abs(tile.getZoom() - viewport.zoom);
+			priority = Math.min(priority, distance);
+		}
+
+		return priority;
+	}
+
+	private static double distanceX(double x, Viewport viewport) {
+		double dx = Math.abs(x - viewport.centerX);
+
+		// the map wraps horizontally
+		double width = viewport.mapSize.getWidth();
+		if (width > 0) {
+			dx %= width;
+			dx = Math.min(dx, width - dx);
+		}
+
+		return dx;
+	}
+
+	private void removeAt(int index) {
+		Tile removed = heap[index];
+		removed.queueIndex = -1;
+
+		Tile last = heap[--size];
+		heap[size] = null;
+		if (index < size) {
+			heap[index] = last;
+			last.queueIndex = index;
+			siftUp(index);
+			siftDown(last.queueIndex);
+		}
+	}
+
+	private void siftUp(int index) {
+		Tile tile = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (!less(tile, heap[parent])) {
+				break;
+			}
+
+			heap[index] = heap[parent];
+			heap[index].queueIndex = index;
+			index = parent;
+		}
+
+		heap[index] = tile;
+		tile.queueIndex = index;
+	}
+
+	private void siftDown(int index) {
+		Tile tile = heap[index];
+		int half = size >>> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < size && less(heap[right], heap[child])) {
+				child = right;
+			}
+
+			if (!less(heap[child], tile)) {
+				break;
+			}
+
+			heap[index] = heap[child];
+			heap[index].queueIndex = index;
+			index = child;
+		}
+
+		heap[index] = tile;
+		tile.queueIndex = index;
+	}
+
+	private static boolean less(Tile a, Tile b) {
+		if (a.getPriority() != b.getPriority()) {
+			return a.getPriority() == Tile.Priority.High;
+		}
+		if (a.queuePriority != b.queuePriority) {
+			return a.queuePriority < b.queuePriority;
+		}
+		return a.queueSequence < b.queueSequence;
+	}
+
+	/**
+	 * A viewport in tile coordinates of its zoom level.
+	 */
+	private static final class Viewport {
+		final int zoom;
+		final double centerX;
+		final double centerY;
+		final double halfWidth;
+		final double halfHeight;
+		final Dimension mapSize;
+
+		Viewport(int zoom, Rectangle bounds, int tileSize, Dimension mapSize) {
+			this.zoom = zoom;
+			this.centerX = bounds.getCenterX() / tileSize;
+			this.centerY = bounds.getCenterY() / tileSize;
+			this.halfWidth = bounds.getWidth() / tileSize / 2;
+			this.halfHeight = bounds.getHeight() / tileSize / 2;
+			this.mapSize = mapSize;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Viewport)) {
+				return false;
+			}
+
+			Viewport other = (Viewport) obj;
+			return zoom == other.zoom && centerX == other.centerX && centerY == other.centerY
+					&& halfWidth == other.halfWidth && halfHeight == other.halfHeight;
+		}
+
+		@Override
+		public int hashCode() {
+			return zoom + 31 * Double.valueOf(centerX).hashCode() + 961 * Double.valueOf(centerY).hashCode();
+		}
+	}
+}
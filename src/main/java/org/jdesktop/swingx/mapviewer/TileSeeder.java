@@ -0,0 +1,258 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads all tiles covering a bounding box over a range of zoom levels into
+ * a {@link DiskTileStore}, so that the map can be used offline. Seeding does
+ * not need a map component, the tiles are downloaded by worker threads while
+ * the calling thread waits.
+ * <p>
+ * Tiles already in the store are skipped, so an interrupted or failed seeding
+ * run is resumed by simply starting it again. Downloads are limited to
+ * {@link #getRequestsPerSecond()} to avoid overloading the tile server, and
+ * they count against the connection limit of the {@link HostConnectionGovernor}
+ * like the downloads of the tile factories.
+ * Install the same store on a factory using
+ * {@link AbstractTileFactory#setDiskTileStore(DiskTileStore)} to use the
+ * seeded tiles.
+ */
+public class TileSeeder {
+	private static final Logger LOG = Logger.getLogger(TileSeeder.class.getName());
+
+	/**
+	 * Receives the progress of a seeding run. Listeners are called from the
+	 * worker threads.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called after each tile.
+		 * @param processed the number of tiles processed so far, including skipped and failed tiles
+		 * @param total the total number of tiles of the run
+		 * @param failed the number of tiles that could not be downloaded
+		 */
+		void progress(long processed, long total, long failed);
+	}
+
+	private final TileFactoryInfo info;
+	private final DiskTileStore store;
+	private final List<ProgressListener> listeners = new CopyOnWriteArrayList<ProgressListener>();
+	private volatile int threads = 4;
+	private volatile double requestsPerSecond = 10;
+	private volatile Map<String, String> httpRequestProperties;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong downloaded = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private long nextRequest;
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates a new seeder.
+	 * @param info the tile source
+	 * @param store the store to write the tiles to
+	 */
+	public TileSeeder(TileFactoryInfo info, DiskTileStore store) {
+		this.info = info;
+		this.store = store;
+	}
+
+	public void addProgressListener(ProgressListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeProgressListener(ProgressListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the number of tiles downloaded in parallel
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the number of tiles downloaded in parallel.
+	 * @param threads the number of worker threads
+	 */
+	public void setThreads(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads invalid: " + threads + ". The number of threads must be greater than 0.");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the maximum number of requests sent to the tile server per second
+	 */
+	public double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	/**
+	 * Sets the maximum number of requests sent to the tile server per second.
+	 * @param requestsPerSecond the request rate
+	 */
+	public void setRequestsPerSecond(double requestsPerSecond) {
+		if (!(requestsPerSecond > 0)) {
+			throw new IllegalArgumentException("requestsPerSecond invalid: " + requestsPerSecond + ". The rate must be greater than 0.");
+		}
+		this.requestsPerSecond = requestsPerSecond;
+	}
+
+	/**
+	 * Sets additional request headers, e.g. the user agent required by many tile servers.
+	 * @param httpRequestProperties the request headers, may be null
+	 */
+	public void setHttpRequestProperties(Map<String, String> httpRequestProperties) {
+		this.httpRequestProperties = httpRequestProperties;
+	}
+
+	/**
+	 * Counts the tiles covering the given bounds.
+	 * @param bounds the area to seed
+	 * @param minZoom the lowest zoom level
+	 * @param maxZoom the highest zoom level
+	 * @return the number of tiles
+	 */
+	public long countTiles(GeoBounds bounds, int minZoom, int maxZoom) {
+		return new TileRange(info, bounds, minZoom, maxZoom).count();
+	}
+
+	/**
+	 * Downloads all tiles covering the given bounds which are not yet in the
+	 * store. This method blocks until all tiles have been processed, the run
+	 * has been cancelled or the calling thread has been interrupted.
+	 * @param bounds the area to seed
+	 * @param minZoom the lowest zoom level
+	 * @param maxZoom the highest zoom level
+	 * @throws InterruptedException if the calling thread has been interrupted
+	 */
+	public void seed(GeoBounds bounds, int minZoom, int maxZoom) throws InterruptedException {
+		final TileRange range = new TileRange(info, bounds, minZoom, maxZoom);
+		final long total = range.count();
+		processed.set(0);
+		downloaded.set(0);
+		skipped.set(0);
+		failed.set(0);
+		cancelled = false;
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					int[] tile = new int[3];
+					while (!cancelled && !Thread.currentThread().isInterrupted() && range.next(tile)) {
+						seed(tile[0], tile[1], tile[2]);
+						long count = processed.incrementAndGet();
+						for (ProgressListener listener : listeners) {
+							listener.progress(count, total, failed.get());
+						}
+					}
+				}
+			}, "tile-seeder-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread worker : workers) {
+				worker.interrupt();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops a running seeding run after the tiles currently being downloaded.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return the number of tiles downloaded by the current or last run
+	 */
+	public long getDownloaded() {
+		return downloaded.get();
+	}
+
+	/**
+	 * @return the number of tiles skipped by the current or last run because they were already stored
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return the number of tiles that could not be downloaded by the current or last run
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	private void seed(int x, int y, int zoom) {
+		String url = info.getTileUrl(x, y, zoom);
+		try {
+			URI uri = new URI(url);
+			if (store.contains(uri)) {
+				skipped.incrementAndGet();
+				return;
+			}
+
+			acquire();
+			URL u = new URL(url);
+			String host = String.valueOf(u.getHost());
+			TileFetcher.Response response;
+			HostConnectionGovernor.getInstance().acquire(host, this);
+			try {
+				response = TileFetcher.fetch(u, httpRequestProperties, new Tile(x, y, zoom), null);
+			} finally {
+				HostConnectionGovernor.getInstance().release(host);
+			}
+			store.put(uri, response.bytes, response.freshness);
+			downloaded.incrementAndGet();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			LOG.log(Level.INFO, "Failed to seed tile " + url + ".", e);
+		} catch (URISyntaxException e) {
+			failed.incrementAndGet();
+			LOG.log(Level.INFO, "Failed to seed tile " + url + ".", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until the next request may be sent.
+	 */
+	private void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long interval = (long) (1000L * 1000 * 1000 / requestsPerSecond);
+			nextRequest = Math.max(nextRequest, now);
+			wait = nextRequest - now;
+			nextRequest += interval;
+		}
+
+		if (wait > 0) {
+			Thread.sleep(wait / (1000 * 1000), (int) (wait % (1000 * 1000)));
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A frequency aware eviction policy following the W-TinyLFU design. New entries
+ * are kept in a small LRU admission window. Entries leaving the window are only
+ * admitted to the main area if they have been requested more often than the
+ * entry that would be evicted in their place. Access frequencies are estimated
+ * by a compact count-min sketch that is periodically aged, so it also covers
+ * entries that are no longer in the cache.
+ * <p>
+ * The main area is a segmented LRU. Entries enter it on probation and are
+ * promoted to the protected segment when they are requested again. This keeps
+ * the tiles of a region that is panned back and forth in the cache, while tiles
+ * that are seen only once pass through the window quickly.
+ */
+public class TinyLfuEvictionPolicy implements TileEvictionPolicy {
+	private static final float DEFAULT_WINDOW_RATIO = 0.2f;
+	private static final float PROTECTED_RATIO = 0.8f;
+
+	private final float windowRatio;
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	private final LinkedHashMap<URI, Long> window = new LinkedHashMap<URI, Long>(16, 0.75f, true);
+	private final LinkedHashMap<URI, Long> probation = new LinkedHashMap<URI, Long>(16, 0.75f, true);
+	private final LinkedHashMap<URI, Long> protect = new LinkedHashMap<URI, Long>(16, 0.75f, true);
+
+	private long windowWeight;
+	private long protectedWeight;
+	private long maxWindowWeight;
+	private long maxProtectedWeight;
+
+	/**
+	 * Creates a new policy that uses 20 percent of the budget for the admission window.
+	 */
+	public TinyLfuEvictionPolicy() {
+		this(DEFAULT_WINDOW_RATIO);
+	}
+
+	/**
+	 * Creates a new policy.
+	 * @param windowRatio the fraction of the budget used for the admission
+	 * window, between 0 and 1. Larger windows favor recently loaded tiles.
+	 */
+	public TinyLfuEvictionPolicy(float windowRatio) {
+		if (!(windowRatio >= 0 && windowRatio <= 1)) {
+			throw new IllegalArgumentException("windowRatio invalid: " + windowRatio + ". The window ratio must be between 0 and 1.");
+		}
+		this.windowRatio = windowRatio;
+	}
+
+	public void setMaximumWeight(long maxWeight) {
+		maxWindowWeight = (long) (maxWeight * windowRatio);
+		maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * PROTECTED_RATIO);
+	}
+
+	public void onAccess(URI key) {
+		sketch.increment(key);
+
+		Long weight = window.get(key);
+		if (weight != null) {
+			return;
+		}
+
+		weight = probation.remove(key);
+		if (weight != null) {
+			// a second hit promotes the entry to the protected segment
+			protect.put(key, weight);
+			protectedWeight += weight;
+			demoteProtected();
+			return;
+		}
+
+		protect.get(key);
+	}
+
+	public void onInsert(URI key, long weight) {
+		sketch.ensureCapacity(window.size() + probation.size() + protect.size() + 1);
+		sketch.increment(key);
+		window.put(key, weight);
+		windowWeight += weight;
+	}
+
+	public void onRemove(URI key) {
+		Long weight = window.remove(key);
+		if (weight != null) {
+			windowWeight -= weight;
+			return;
+		}
+
+		if (probation.remove(key) != null) {
+			return;
+		}
+
+		weight = protect.remove(key);
+		if (weight != null) {
+			protectedWeight -= weight;
+		}
+	}
+
+	public URI nextVictim() {
+		// entries leaving the window become candidates for the main area
+		URI candidate = null;
+		while (windowWeight > maxWindowWeight && !window.isEmpty()) {
+			Map.Entry<URI, Long> eldest = eldest(window);
+			window.remove(eldest.getKey());
+			windowWeight -= eldest.getValue();
+			probation.put(eldest.getKey(), eldest.getValue());
+			candidate = eldest.getKey();
+		}
+
+		if (!probation.isEmpty()) {
+			URI victim = eldest(probation).getKey();
+			if (candidate != null && !candidate.equals(victim)
+					&& sketch.frequency(candidate) <= sketch.frequency(victim)) {
+				// the candidate is not requested more often than the victim, so reject it
+				return candidate;
+			}
+			return victim;
+		}
+
+		if (!protect.isEmpty()) {
+			return eldest(protect).getKey();
+		}
+
+		return window.isEmpty() ? null : eldest(window).getKey();
+	}
+
+	public void clear() {
+		window.clear();
+		probation.clear();
+		protect.clear();
+		windowWeight = 0;
+		protectedWeight = 0;
+	}
+
+	private void demoteProtected() {
+		while (protectedWeight > maxProtectedWeight && protect.size() > 1) {
+			Map.Entry<URI, Long> eldest = eldest(protect);
+			protect.remove(eldest.getKey());
+			protectedWeight -= eldest.getValue();
+			probation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> map) {
+		Iterator<Map.Entry<K, V>> iter = map.entrySet().iterator();
+		return iter.next();
+	}
+
+	/**
+	 * A count-min sketch with four hash functions and 4-bit counters. Sixteen
+	 * counters are packed into each long. After a sample of ten times the table
+	 * size has been recorded, all counters are halved so that the sketch adapts
+	 * to a changing working set.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private long[] table;
+		private int mask;
+		private int sampleSize;
+		private int size;
+
+		FrequencySketch() {
+			ensureCapacity(16);
+		}
+
+		void ensureCapacity(int maximumSize) {
+			int length = 16;
+			while (length < maximumSize) {
+				length <<= 1;
+			}
+
+			if (table != null && table.length >= length) {
+				return;
+			}
+
+			// a counter is indexed by the low bits of its hash, so copying the
+			// table into each part of the larger one keeps all frequencies
+			long[] grown = new long[length];
+			if (table != null) {
+				for (int offset = 0; offset < length; offset += table.length) {
+					System.arraycopy(table, 0, grown, offset, table.length);
+				}
+			}
+
+			table = grown;
+			mask = length - 1;
+			sampleSize = 10 * length;
+		}
+
+		int frequency(Object e) {
+			int hash = spread(e.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(Object e) {
+			int hash = spread(e.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				added |= incrementAt(indexOf(hash, i), start + i);
+			}
+
+			if (added && ++size == sampleSize) {
+				reset();
+			}
+		}
+
+		private boolean incrementAt(int i, int j) {
+			int offset = j << 2;
+			long mask = 0xfL << offset;
+			if ((table[i] & mask) != mask) {
+				table[i] += 1L << offset;
+				return true;
+			}
+			return false;
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			size /= 2;
+		}
+
+		private int indexOf(int item, int i) {
+			long hash = (item + SEEDS[i]) * SEEDS[i];
+			hash += hash >>> 32;
+			return ((int) hash) & mask;
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates executors running each task on a virtual thread. Virtual threads
+ * require Java 21, this baseline version is used on older runtimes and does not
+ * support them. The Java 21 version lives in <code>META-INF/versions/21</code>
+ * of the multi-release JAR.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads
+	 */
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 * @param prefix the prefix of the thread names
+	 * @return the executor, or null if virtual threads are not supported
+	 */
+	static ExecutorService newExecutor(String prefix) {
+		return null;
+	}
+}
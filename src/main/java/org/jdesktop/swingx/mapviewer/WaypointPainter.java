@@ -47,6 +47,14 @@ public class WaypointPainter<T extends JXMapViewer> extends AbstractPainter<T> {
         this.renderer = r;
     }
     
+    /**
+     * Gets the waypoint renderer used when painting waypoints
+     * @return the current WaypointRenderer
+     */
+    public WaypointRenderer getRenderer() {
+        return renderer;
+    }
+    
     /**
      * Gets the current set of waypoints to paint
      * @return a typed Set of Waypoints
@@ -0,0 +1,51 @@
+package org.jdesktop.swingx.mapviewer.archive;
+
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jdesktop.swingx.mapviewer.AbstractTileFactory;
+import org.jdesktop.swingx.mapviewer.Tile;
+import org.jdesktop.swingx.mapviewer.TileDecoder;
+import org.jdesktop.swingx.mapviewer.util.ByteBufferImageInputStream;
+
+/**
+ * A tile factory showing the tiles of a {@link TileArchive}. The tiles are
+ * decoded straight from the memory mapped archive, no network, disk tile store
+ * or compressed tile cache is involved.
+ */
+public class ArchiveTileFactory extends AbstractTileFactory {
+	private final TileArchive archive;
+
+	/**
+	 * Creates a new factory.
+	 * @param archive the archive holding the tiles
+	 */
+	public ArchiveTileFactory(TileArchive archive) {
+		super(archive.createInfo());
+		this.archive = archive;
+	}
+
+	/**
+	 * @return the archive holding the tiles
+	 */
+	public TileArchive getArchive() {
+		return archive;
+	}
+
+	@Override
+	protected BufferedImage loadLocalTile(Tile tile) throws IOException {
+		ByteBuffer bytes = archive.getTile(tile.getZoom(), tile.getX(), tile.getY());
+		if (bytes == null) {
+			throw new FileNotFoundException("The tile " + tile.getZoom() + "/" + tile.getX() + "/" + tile.getY()
+					+ " is not in the archive " + archive.getFile() + ".");
+		}
+
+		BufferedImage img = TileDecoder.decode(new ByteBufferImageInputStream(bytes));
+		if (img == null) {
+			throw new IOException("Failed to decode the tile " + tile.getZoom() + "/" + tile.getX() + "/" + tile.getY() + ".");
+		}
+		return img;
+	}
+}
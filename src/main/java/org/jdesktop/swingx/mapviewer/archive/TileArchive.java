@@ -0,0 +1,263 @@
+package org.jdesktop.swingx.mapviewer.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+
+/**
+ * A read-only archive holding all tiles of a map in a single file. The file is
+ * memory mapped, so opening it is cheap no matter how large it is, and tiles
+ * are returned as slices of the mapping without being copied to the heap.
+ * <p>
+ * The file starts with a header, followed by the tile data and a directory
+ * sorted by tile key. The key of a tile is its zoom level followed by the
+ * position of the tile on a Hilbert curve, so tiles close to each other on the
+ * map are close to each other in the file, and a viewport only touches a few
+ * pages of it. A tile is found by a binary search over the mapped directory.
+ * <p>
+ * Archives are created using {@link TileArchiveWriter}.
+ */
+public final class TileArchive implements Closeable {
+	static final byte[] MAGIC = "SWXTILES".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 40;
+	static final int ENTRY_SIZE = 20;
+	// the data is mapped in chunks of this size, tiles never cross a chunk boundary
+	static final long CHUNK_SIZE = 1L << 30;
+	static final int MAX_ZOOM = 127;
+	static final int MAX_COORDINATE = (1 << 28) - 1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final int tileSize;
+	private final int minZoom;
+	private final int maxZoom;
+	private final int totalMapZoom;
+	private final int entryCount;
+	private final ByteBuffer index;
+	private final MappedByteBuffer[] chunks;
+
+	private TileArchive(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) == -1) {
+					throw new IOException("The file " + file + " is not a tile archive.");
+				}
+			}
+			header.flip();
+
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("The file " + file + " is not a tile archive.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("The tile archive " + file + " has the unsupported version " + version + ".");
+			}
+
+			tileSize = header.getInt();
+			minZoom = header.getInt();
+			maxZoom = header.getInt();
+			totalMapZoom = header.getInt();
+			entryCount = header.getInt();
+			long indexOffset = header.getLong();
+			long indexLength = (long) entryCount * ENTRY_SIZE;
+			if (entryCount < 0 || indexOffset < HEADER_SIZE || indexLength > Integer.MAX_VALUE
+					|| indexOffset + indexLength > channel.size()) {
+				throw new IOException("The tile archive " + file + " is corrupt.");
+			}
+
+			index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+
+			long dataLength = indexOffset - HEADER_SIZE;
+			chunks = new MappedByteBuffer[(int) ((dataLength + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for (int i = 0; i < chunks.length; i++) {
+				long start = i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start,
+						Math.min(CHUNK_SIZE, dataLength - start));
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an archive.
+	 * @param file the archive file
+	 * @return the archive
+	 * @throws IOException if the file cannot be read or is not a tile archive
+	 */
+	public static TileArchive open(File file) throws IOException {
+		return new TileArchive(file);
+	}
+
+	/**
+	 * Returns the encoded image of a tile. The returned buffer is a read-only
+	 * view of the mapped file, it must not be used after the archive has been
+	 * closed.
+	 * @param zoom the zoom level
+	 * @param x the tile x
+	 * @param y the tile y
+	 * @return the encoded image, or null if the archive does not contain the tile
+	 */
+	public ByteBuffer getTile(int zoom, int x, int y) {
+		if (!isValid(zoom, x, y)) {
+			return null;
+		}
+
+		int entry = find(key(zoom, x, y));
+		if (entry < 0) {
+			return null;
+		}
+
+		int position = entry * ENTRY_SIZE;
+		long offset = index.getLong(position + 8) - HEADER_SIZE;
+		int length = index.getInt(position + 16);
+
+		ByteBuffer tile = chunks[(int) (offset / CHUNK_SIZE)].asReadOnlyBuffer();
+		int start = (int) (offset % CHUNK_SIZE);
+		tile.limit(start + length);
+		tile.position(start);
+		return tile.slice();
+	}
+
+	/**
+	 * @return true if the archive contains the given tile
+	 */
+	public boolean contains(int zoom, int x, int y) {
+		return isValid(zoom, x, y) && find(key(zoom, x, y)) >= 0;
+	}
+
+	private int find(long key) {
+		int low = 0;
+		int high = entryCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midKey = index.getLong(mid * ENTRY_SIZE);
+			if (midKey < key) {
+				low = mid + 1;
+			} else if (midKey > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of tiles in the archive
+	 */
+	public int getTileCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return the archive file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the size of the tiles in pixels
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return the minimum zoom level of the map
+	 */
+	public int getMinimumZoomLevel() {
+		return minZoom;
+	}
+
+	/**
+	 * @return the maximum zoom level of the map
+	 */
+	public int getMaximumZoomLevel() {
+		return maxZoom;
+	}
+
+	/**
+	 * @return the top zoom level of the map
+	 */
+	public int getTotalMapZoom() {
+		return totalMapZoom;
+	}
+
+	/**
+	 * Creates the info of a factory showing the tiles of this archive. The tile
+	 * URLs of the info have the form <code>archive:zoom/x/y</code>.
+	 * @return the info
+	 */
+	public TileFactoryInfo createInfo() {
+		return new TileFactoryInfo(file.getName(), minZoom, maxZoom, totalMapZoom, tileSize,
+				true, true, "archive:", "x", "y", "z") {
+			@Override
+			public String getTileUrl(int x, int y, int zoom) {
+				return "archive:" + zoom + "/" + x + "/" + y;
+			}
+		};
+	}
+
+	/**
+	 * Closes the archive file. The mapping itself is released by the garbage
+	 * collector once no buffers returned by {@link #getTile(int, int, int)}
+	 * are referenced anymore.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	static boolean isValid(int zoom, int x, int y) {
+		return zoom >= 0 && zoom <= MAX_ZOOM
+				&& x >= 0 && x <= MAX_COORDINATE
+				&& y >= 0 && y <= MAX_COORDINATE;
+	}
+
+	/**
+	 * The directory key of a tile: the zoom level in the top bits, followed by
+	 * the distance of the tile along a Hilbert curve covering 2^28 x 2^28 tiles.
+	 */
+	static long key(int zoom, int x, int y) {
+		return ((long) zoom << 56) | hilbert(x, y);
+	}
+
+	private static long hilbert(int x, int y) {
+		long d = 0;
+		for (int s = 1 << 27; s > 0; s >>= 1) {
+			int rx = (x & s) != 0 ? 1 : 0;
+			int ry = (y & s) != 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+
+			// rotate the quadrant, so that the curve stays continuous
+			if (ry == 0) {
+				if (rx == 1) {
+					x = MAX_COORDINATE - x;
+					y = MAX_COORDINATE - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,268 @@
+package org.jdesktop.swingx.mapviewer.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jdesktop.swingx.mapviewer.DiskTileStore;
+import org.jdesktop.swingx.mapviewer.GeoBounds;
+import org.jdesktop.swingx.mapviewer.TileFactoryInfo;
+import org.jdesktop.swingx.mapviewer.TileRange;
+
+/**
+ * Creates a {@link TileArchive}. Tiles may be added in any order, they are
+ * collected in a temporary file and sorted along the Hilbert curve when the
+ * writer is closed. The archive file is replaced atomically, so an existing
+ * archive stays usable until the new one is complete.
+ * <p>
+ * A typical way to build an archive is to download an area using a
+ * {@link org.jdesktop.swingx.mapviewer.TileSeeder} and to copy the seeded
+ * tiles using {@link #addFromStore(DiskTileStore, TileFactoryInfo, GeoBounds, int, int)}.
+ */
+public class TileArchiveWriter implements Closeable {
+	private final File file;
+	private final int tileSize;
+	private final int minZoom;
+	private final int maxZoom;
+	private final int totalMapZoom;
+
+	private final File dataFile;
+	private final RandomAccessFile data;
+	private long dataSize;
+
+	private long[] keys = new long[1024];
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+	private int count;
+	private boolean closed;
+
+	/**
+	 * Creates a new writer.
+	 * @param file the archive file to create
+	 * @param tileSize the size of the tiles in pixels
+	 * @param minZoom the minimum zoom level of the map
+	 * @param maxZoom the maximum zoom level of the map
+	 * @param totalMapZoom the top zoom level of the map
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public TileArchiveWriter(File file, int tileSize, int minZoom, int maxZoom, int totalMapZoom) throws IOException {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("tileSize invalid: " + tileSize + ". The tile size must be greater than 0.");
+		}
+
+		this.file = file;
+		this.tileSize = tileSize;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.totalMapZoom = totalMapZoom;
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		dataFile = File.createTempFile(file.getName(), ".data", directory);
+		data = new RandomAccessFile(dataFile, "rw");
+	}
+
+	/**
+	 * Creates a writer for an archive of the map described by the given info.
+	 * @param file the archive file to create
+	 * @param info the tile source
+	 * @return the writer
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public static TileArchiveWriter forInfo(File file, TileFactoryInfo info) throws IOException {
+		return new TileArchiveWriter(file, info.getTileSize(info.getMinimumZoomLevel()),
+				info.getMinimumZoomLevel(), info.getMaximumZoomLevel(), info.getTotalMapZoom());
+	}
+
+	/**
+	 * Adds a tile. If a tile is added twice, the last one wins.
+	 * @param zoom the zoom level
+	 * @param x the tile x
+	 * @param y the tile y
+	 * @param bytes the encoded image
+	 * @throws IOException if the tile cannot be written
+	 */
+	public synchronized void add(int zoom, int x, int y, byte[] bytes) throws IOException {
+		if (closed) {
+			throw new IOException("The writer has been closed.");
+		}
+		if (!TileArchive.isValid(zoom, x, y)) {
+			throw new IllegalArgumentException("tile invalid: " + zoom + "/" + x + "/" + y + ". The zoom level must be between 0 and "
+					+ TileArchive.MAX_ZOOM + " and the coordinates between 0 and " + TileArchive.MAX_COORDINATE + ".");
+		}
+		if (bytes.length > TileArchive.CHUNK_SIZE) {
+			throw new IllegalArgumentException("bytes invalid: " + bytes.length + ". A tile must not be larger than "
+					+ TileArchive.CHUNK_SIZE + " bytes.");
+		}
+
+		data.seek(dataSize);
+		data.write(bytes);
+
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		keys[count] = TileArchive.key(zoom, x, y);
+		offsets[count] = dataSize;
+		lengths[count] = bytes.length;
+		count++;
+		dataSize += bytes.length;
+	}
+
+	/**
+	 * Adds all tiles of a disk tile store covering the given bounds. Tiles
+	 * missing from the store are skipped.
+	 * @param store the store, e.g. filled by a {@link org.jdesktop.swingx.mapviewer.TileSeeder}
+	 * @param info the tile source the store has been filled from
+	 * @param bounds the area to copy
+	 * @param minZoom the lowest zoom level
+	 * @param maxZoom the highest zoom level
+	 * @return the number of tiles added
+	 * @throws IOException if a tile cannot be read or written
+	 */
+	public long addFromStore(DiskTileStore store, TileFactoryInfo info, GeoBounds bounds, int minZoom, int maxZoom) throws IOException {
+		TileRange range = new TileRange(info, bounds, minZoom, maxZoom);
+		int[] tile = new int[3];
+		long added = 0;
+		while (range.next(tile)) {
+			String url = info.getTileUrl(tile[0], tile[1], tile[2]);
+			byte[] bytes;
+			try {
+				bytes = store.get(new URI(url));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid tile URL " + url + ".", e);
+			}
+
+			if (bytes != null) {
+				add(tile[2], tile[0], tile[1], bytes);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Writes the archive and deletes the temporary file.
+	 * @throws IOException if the archive cannot be written
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", dataFile.getParentFile());
+			write(tmp);
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			data.close();
+			dataFile.delete();
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private void write(File target) throws IOException {
+		int[] order = sort();
+
+		RandomAccessFile out = new RandomAccessFile(target, "rw");
+		try {
+			FileChannel source = data.getChannel();
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+
+			// the data in key order, padded so that no tile crosses a chunk boundary
+			ByteBuffer entries = ByteBuffer.allocate(order.length * TileArchive.ENTRY_SIZE).order(ByteOrder.BIG_ENDIAN);
+			long position = TileArchive.HEADER_SIZE;
+			for (int i : order) {
+				long relative = position - TileArchive.HEADER_SIZE;
+				if (relative % TileArchive.CHUNK_SIZE + lengths[i] > TileArchive.CHUNK_SIZE) {
+					position += TileArchive.CHUNK_SIZE - relative % TileArchive.CHUNK_SIZE;
+				}
+
+				long transferred = 0;
+				while (transferred < lengths[i]) {
+					long n = source.transferTo(offsets[i] + transferred, lengths[i] - transferred, channel.position(position + transferred));
+					if (n <= 0) {
+						throw new IOException("Failed to copy tile data to " + target + ".");
+					}
+					transferred += n;
+				}
+
+				entries.putLong(keys[i]);
+				entries.putLong(position);
+				entries.putInt(lengths[i]);
+				position += lengths[i];
+			}
+
+			long indexOffset = position;
+			entries.flip();
+			while (entries.hasRemaining()) {
+				position += channel.write(entries, position);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(TileArchive.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+			header.put(TileArchive.MAGIC);
+			header.putInt(TileArchive.VERSION);
+			header.putInt(tileSize);
+			header.putInt(minZoom);
+			header.putInt(maxZoom);
+			header.putInt(totalMapZoom);
+			header.putInt(order.length);
+			header.putLong(indexOffset);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the indices of the entries in key order, without duplicate keys
+	 */
+	private int[] sort() {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		// ties are ordered by insertion, so the last duplicate is kept below
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(keys[a], keys[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+
+		int[] unique = new int[count];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (i + 1 < count && keys[order[i + 1]] == keys[order[i]]) {
+				continue;
+			}
+			unique[n++] = order[i];
+		}
+		return Arrays.copyOf(unique, n);
+	}
+}
@@ -84,10 +84,6 @@ public class ESRITileFactory extends DefaultTileFactory {
             BigDecimal lon = new BigDecimal(latlong.getLongitude());
             lat = lat.setScale(5, RoundingMode.DOWN);
             lon = lon.setScale(5, RoundingMode.DOWN);
-            System.out.println("Tile      : [" + tileX + ", " + tileY + "]");
-            System.out.println("Pixel     : [" + pixelX + ", " + pixelY + "]");
-            System.out.println("Lat/Long  : [" + latlong.getLatitude() + ", " + latlong.getLongitude() + "]");
-            System.out.println("Lat2/Long2: [" + lat.doubleValue() + ", " + lon.doubleValue() + "]");
             
             String url = baseURL +
                     "&usrid=" + factory.userId +
@@ -96,7 +92,6 @@ public class ESRITileFactory extends DefaultTileFactory {
                     "&sf=" + sf + //52500" +
                     "&fmt=" + format +
                     "&ocs=" + projection;
-            System.out.println("the URL: " + url);
             return url;
         }
     }
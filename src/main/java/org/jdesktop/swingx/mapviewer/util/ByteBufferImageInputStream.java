@@ -0,0 +1,79 @@
+package org.jdesktop.swingx.mapviewer.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An <code>ImageInputStream</code> reading from a <code>ByteBuffer</code>. This
+ * allows image readers to decode data held in direct or mapped buffers without
+ * copying it to the heap first. The stream reads the bytes between the position
+ * and the limit the buffer has when the stream is created; the buffer itself
+ * is never modified.
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+	private final ByteBuffer buffer;
+	private final int start;
+	private final int length;
+	private boolean closed;
+
+	/**
+	 * Creates a new stream.
+	 * @param buffer the buffer to read from
+	 */
+	public ByteBufferImageInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		start = buffer.position();
+		length = buffer.remaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= length) {
+			return -1;
+		}
+
+		return buffer.get(start + (int) streamPos++) & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+
+		long remaining = length - streamPos;
+		if (remaining <= 0) {
+			return -1;
+		}
+
+		int n = (int) Math.min(len, remaining);
+		buffer.position(start + (int) streamPos);
+		buffer.get(b, off, n);
+		streamPos += n;
+		return n;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// image readers may close the stream themselves, so closing it twice is fine
+		if (!closed) {
+			closed = true;
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.jdesktop.swingx.mapviewer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors running each task on a virtual thread. This is the Java 21
+ * version of the class, it is used from <code>META-INF/versions/21</code> of
+ * the multi-release JAR.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads
+	 */
+	static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 * @param prefix the prefix of the thread names
+	 * @return the executor, or null if virtual threads are not supported
+	 */
+	static ExecutorService newExecutor(String prefix) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory());
+	}
+}